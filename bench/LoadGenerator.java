@@ -0,0 +1,226 @@
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless players for load testing a running server over RMI. Each bot
+ * logs in, creates its dungeon (or joins it if another bot was first),
+ * walks around at random looking at every location and picking up what
+ * it finds, then leaves the dungeon and disconnects. Bots are started
+ * over the ramp-up period and wait a random think time between two
+ * commands; the time of every call is recorded by command type and
+ * printed at the end, with the throughput printed as the test runs.
+ *
+ * Usage (with a server started with enough room for the bots):
+ *   java -cp ../bench/classes LoadGenerator [-host localhost] [-port 50015] [-bots 50]
+ *        [-dungeons 5] [-steps 100] [-duration 0] [-think 50] [-rampup 5000] [-report 5]
+ * or "make load ARGS=..." in the src folder. Times are in milliseconds
+ * except the duration and the report interval, which are in seconds.
+ */
+public class LoadGenerator {
+    private static final String[] DIRECTIONS = { "north", "east", "south", "west" };
+    private static final String[] ITEMS = { "ring", "treasure" };
+
+    private String host = "localhost";
+    private int port = 50015;
+    private int bots = 50;
+    private int dungeons = 5;
+    private int steps = 100;    // moves made by every bot
+    private long duration = 0;  // seconds, 0 means until every bot made its moves
+    private long think = 50;    // mean pause between two commands
+    private long rampUp = 5000; // the last bot starts this long after the first
+    private long report = 5;    // seconds between two progress lines
+
+    // the numbers of one kind of call
+    private static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder rejected = new LongAdder();  // answered with a failure (e.g. no such item)
+        final LongAdder errors = new LongAdder();    // failed with an exception
+    }
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();  // filled before the bots start
+    private final LongAdder calls = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+    private ServerInterface server;
+    private long deadline = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator load = new LoadGenerator();
+        load.parse(args);
+        load.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch(args[i]) {
+                case "-host": this.host = value; break;
+                case "-port": this.port = Integer.parseInt(value); break;
+                case "-bots": this.bots = Integer.parseInt(value); break;
+                case "-dungeons": this.dungeons = Integer.parseInt(value); break;
+                case "-steps": this.steps = Integer.parseInt(value); break;
+                case "-duration": this.duration = Long.parseLong(value); break;
+                case "-think": this.think = Long.parseLong(value); break;
+                case "-rampup": this.rampUp = Long.parseLong(value); break;
+                case "-report": this.report = Long.parseLong(value); break;
+                default: System.err.println("Error, unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        for(Command.Type type : Command.Type.values()) {
+            this.stats.put(type.name(), new Stats());
+        }
+        this.stats.put("DISCONNECT", new Stats());
+
+        this.server = (ServerInterface)Naming.lookup("rmi://" + this.host + ":" + this.port + "/mud");
+        System.out.printf("# %d bots, %d dungeons, %d steps, think %d ms, ramp-up %d ms%n",
+            this.bots, this.dungeons, this.steps, this.think, this.rampUp);
+
+        long begin = System.nanoTime();
+        if(this.duration > 0) {
+            this.deadline = begin + this.duration * 1_000_000_000L;
+        }
+        Thread[] threads = new Thread[this.bots];
+        for(int i = 0; i < this.bots; i++) {
+            int bot = i;
+            threads[i] = new Thread(() -> this.play(bot, begin), "bot-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        Thread reporter = new Thread(() -> this.progress(begin), "load-report");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        this.summary(System.nanoTime() - begin);
+    }
+
+    // one bot from login to disconnect
+    private void play(int bot, long begin) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = begin + (this.bots <= 1 ? 0 : this.rampUp * 1_000_000L * bot / (this.bots - 1));
+        this.sleepUntil(start);
+        this.active.incrementAndGet();
+
+        String name = "bot-" + bot + "-" + Long.toHexString(random.nextLong() & 0xffffff);
+        String dungeon = "load-" + (bot % this.dungeons);
+        try {
+            Result login = this.call(0, Command.logIn(name));
+            if(login == null || !login.isOk()) {
+                return;
+            }
+            long session = login.getNumber();
+
+            this.call(session, Command.createDungeon(dungeon, this.bots));  // fails if another bot was first
+            Result joined = this.call(session, Command.joinDungeon(dungeon));
+            if(joined != null && joined.isOk()) {
+                for(int step = 0; step < this.steps && System.nanoTime() < this.deadline; step++) {
+                    this.pause(random);
+                    this.call(session, Command.move(DIRECTIONS[random.nextInt(DIRECTIONS.length)]));
+                    this.pause(random);
+                    this.call(session, Command.look());
+                    if(random.nextInt(4) == 0) {
+                        this.pause(random);
+                        this.call(session, Command.pickUp(ITEMS[random.nextInt(ITEMS.length)]));
+                    }
+                }
+                this.call(session, Command.leaveDungeon());
+            }
+            this.disconnect(session);
+        } finally {
+            this.active.decrementAndGet();
+        }
+    }
+
+    // send one command on its own and record how long the round trip took
+    private Result call(long session, Command command) {
+        Stats stats = this.stats.get(command.getType().name());
+        long start = System.nanoTime();
+        try {
+            Result result = this.server.execute(session, Arrays.asList(command)).get(0);
+            if(!result.isOk()) {
+                stats.rejected.increment();
+            }
+            return result;
+        } catch(RemoteException e) {
+            stats.errors.increment();
+            return null;
+        } finally {
+            stats.latency.record(System.nanoTime() - start);
+            this.calls.increment();
+        }
+    }
+
+    private void disconnect(long session) {
+        Stats stats = this.stats.get("DISCONNECT");
+        long start = System.nanoTime();
+        try {
+            this.server.playerDisconnect(session);
+        } catch(RemoteException e) {
+            stats.errors.increment();
+        } finally {
+            stats.latency.record(System.nanoTime() - start);
+            this.calls.increment();
+        }
+    }
+
+    // think time, uniformly spread around the mean
+    private void pause(ThreadLocalRandom random) {
+        if(this.think > 0) {
+            this.sleepUntil(System.nanoTime() + random.nextLong(2 * this.think * 1_000_000L + 1));
+        }
+    }
+
+    private void sleepUntil(long nanoTime) {
+        long left;
+        while((left = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(left / 1_000_000L, (int)(left % 1_000_000L));
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // a line every few seconds: how many bots are playing and the calls per second since the last line
+    private void progress(long begin) {
+        long last = 0;
+        while(true) {
+            this.sleepUntil(System.nanoTime() + this.report * 1_000_000_000L);
+            long now = this.calls.sum();
+            System.out.printf("[%5ds] active bots %5d, %10.1f calls/s%n",
+                (System.nanoTime() - begin) / 1_000_000_000L, this.active.get(), (now - last) / (double)this.report);
+            last = now;
+        }
+    }
+
+    private void summary(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("%n# %d calls in %.1f s, %.1f calls/s%n", this.calls.sum(), seconds, this.calls.sum() / seconds);
+        System.out.printf("%-15s %9s %9s %9s %10s %10s %10s %10s %10s%n",
+            "Command", "calls", "rejected", "errors", "calls/s", "p50 us", "p99 us", "p999 us", "max us");
+        for(Map.Entry<String, Stats> entry : this.stats.entrySet()) {
+            Stats stats = entry.getValue();
+            LatencyHistogram latency = stats.latency;
+            if(latency.count() == 0) {
+                continue;
+            }
+            System.out.printf("%-15s %9d %9d %9d %10.1f %10d %10d %10d %10d%n",
+                entry.getKey(), latency.count(), stats.rejected.sum(), stats.errors.sum(), latency.count() / seconds,
+                latency.percentile(0.5) / 1000, latency.percentile(0.99) / 1000,
+                latency.percentile(0.999) / 1000, latency.max() / 1000);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Micro benchmarks of the hot paths of the world and of the server,
+ * run in the same process (no RMI). It works like JMH: every benchmark
+ * is warmed up for a few iterations, then measured for a few more, and
+ * the mean throughput is reported with its error (three standard
+ * deviations) and the average time of one operation.
+ * The server benchmarks are run with 1, 4, 16 and 64 threads, each
+ * thread playing a different logged in player.
+ *
+ * Usage (from the src folder, where the world files are):
+ *   java -cp .:../bench/classes MUDBenchmark [-wi 3] [-i 5] [-r 1000] [-t 1,4,16,64] [name filter]
+ * or simply "make bench" in the src folder.
+ */
+public class MUDBenchmark {
+    private static final String EDG = "mymud.edg";
+    private static final String MSG = "mymud.msg";
+    private static final String THG = "mymud.thg";
+    private static final String[] DIRECTIONS = { "north", "east", "south", "west" };
+    private static final int DUNGEONS = 8;  // the players of the server benchmarks are spread over them
+
+    // results are written here so that the JIT cannot drop the work
+    static volatile Object sink;
+
+    // what one thread runs over and over
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    // builds the operation of each thread once the shared state is ready
+    interface Setup {
+        Operation prepare(int threads, int thread) throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final boolean threaded; // single threaded benchmarks are only run with one thread
+        final Setup setup;
+
+        Benchmark(String name, boolean threaded, Setup setup) {
+            this.name = name;
+            this.threaded = threaded;
+            this.setup = setup;
+        }
+    }
+
+    private int warmups = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private int[] threadCounts = { 1, 4, 16, 64 };
+    private String filter = "";
+    private final PrintStream out = System.out;
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+
+    // the server shared by the threads of a server benchmark
+    private ServerImpl server;
+    private long[] sessions;
+
+    public static void main(String[] args) throws Exception {
+        MUDBenchmark bench = new MUDBenchmark();
+        bench.parse(args);
+        // the server and the parser talk on the console, keep it for the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        bench.define();
+        bench.runAll();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "-wi": this.warmups = Integer.parseInt(args[++i]); break;
+                case "-i": this.iterations = Integer.parseInt(args[++i]); break;
+                case "-r": this.iterationMillis = Long.parseLong(args[++i]); break;
+                case "-t":
+                    this.threadCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                default: this.filter = args[i];
+            }
+        }
+    }
+
+    private void define() {
+        WorldTemplate template = WorldTemplate.load(EDG, MSG, THG);
+        String start = template.startLocation();
+
+        // world: parsing the files and creating instances
+        this.add("world.parse", false, (threads, thread) -> () -> sink = WorldTemplate.parse(EDG, MSG, THG));
+        this.add("world.map", false, (threads, thread) -> {
+            File image = File.createTempFile("bench", ".world");
+            image.deleteOnExit();
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(image)))) {
+                template.write(out);
+            }
+            return () -> sink = WorldTemplate.map(image.getPath());
+        });
+        this.add("world.instance", false, (threads, thread) -> () -> sink = new MUD(template, 16));
+
+        // world: the methods of one instance (an instance is only ever used by one thread)
+        this.add("mud.moveThing", false, (threads, thread) -> {
+            MUD mud = new MUD(template, 16);
+            mud.addThing(start, "player");
+            String[] location = { start };
+            int[] step = { 0 };
+            return () -> {
+                location[0] = mud.moveThing(location[0], DIRECTIONS[step[0]++ & 3], "player");
+                sink = location[0];
+            };
+        });
+        this.add("mud.existsThing", false, (threads, thread) -> {
+            MUD mud = new MUD(template, 16);
+            mud.addPlayer("player");
+            mud.addThing(start, "player");
+            return () -> sink = mud.existsThing(start, "ring");
+        });
+        // describing a location: from the template alone, and through an instance
+        // for a room it has changed (its own things) and one it has not
+        this.add("world.describe", false, (threads, thread) -> {
+            int v = template.id(start);
+            return () -> sink = template.describe(v);
+        });
+        this.add("mud.locationInfo(changed)", false, (threads, thread) -> {
+            MUD mud = new MUD(template, 16);
+            mud.addThing(start, "player");
+            return () -> sink = mud.locationInfo(start);
+        });
+        this.add("mud.locationInfo(unchanged)", false, (threads, thread) -> {
+            MUD mud = new MUD(template, 16);
+            String other = template.name(template.id(start) == 0 ? 1 : 0);
+            return () -> sink = mud.locationInfo(other);
+        });
+
+        // server: called directly, every thread is a player in one of the dungeons
+        this.add("server.listCurrentMUDs", true, (threads, thread) -> () -> sink = this.server.listCurrentMUDs(false));
+        this.add("server.execute(move,look)", true, (threads, thread) -> {
+            long session = this.sessions[thread];
+            int[] step = { 0 };
+            return () -> sink = this.server.execute(session,
+                Arrays.asList(Command.move(DIRECTIONS[step[0]++ & 3]), Command.look()));
+        });
+        this.add("server.playerMove", true, (threads, thread) -> {
+            long session = this.sessions[thread];
+            int[] step = { 0 };
+            return () -> sink = this.server.playerMove(session, DIRECTIONS[step[0]++ & 3]);
+        });
+        this.add("server.locationInfo", true, (threads, thread) -> {
+            long session = this.sessions[thread];
+            return () -> sink = this.server.locationInfo(session);
+        });
+    }
+
+    private void add(String name, boolean threaded, Setup setup) {
+        if(name.contains(this.filter)) {
+            this.benchmarks.add(new Benchmark(name, threaded, setup));
+        }
+    }
+
+    // a fresh server with one logged in player per thread, spread over the dungeons
+    private void startServer(int threads) throws Exception {
+        this.server = new ServerImpl(DUNGEONS, threads, 4);
+        this.sessions = new long[threads];
+        for(int t = 0; t < threads; t++) {
+            String dungeon = "dungeon-" + (t % DUNGEONS);
+            List<Command> commands = new ArrayList<>();
+            commands.add(Command.logIn("bench-" + t));
+            if(t < DUNGEONS) {  // a batch stops at the first failure, so only create what is missing
+                commands.add(Command.createDungeon(dungeon, threads));
+            }
+            commands.add(Command.joinDungeon(dungeon));
+            List<Result> results = this.server.execute(0, commands);
+            Result joined = results.get(results.size() - 1);
+            if(!joined.isOk()) {
+                throw new IllegalStateException("bench-" + t + " could not join " + dungeon + ": " + joined.getStatus());
+            }
+            this.sessions[t] = results.get(0).getNumber();
+        }
+    }
+
+    private void runAll() throws Exception {
+        this.out.printf("# Warmup: %d iterations, measurement: %d iterations, %d ms each%n",
+            this.warmups, this.iterations, this.iterationMillis);
+        this.out.printf("%-30s %7s %15s %12s %12s%n", "Benchmark", "Threads", "ops/s", "error", "ns/op");
+
+        for(Benchmark benchmark : this.benchmarks) {
+            int[] counts = benchmark.threaded ? this.threadCounts : new int[] { 1 };
+            for(int threads : counts) {
+                if(benchmark.threaded) {
+                    this.startServer(threads);
+                }
+                this.run(benchmark, threads);
+            }
+        }
+    }
+
+    private void run(Benchmark benchmark, int threads) throws Exception {
+        Operation[] operations = new Operation[threads];
+        for(int t = 0; t < threads; t++) {
+            operations[t] = benchmark.setup.prepare(threads, t);
+        }
+
+        for(int i = 0; i < this.warmups; i++) {
+            this.iteration(operations);
+        }
+        double[] throughput = new double[this.iterations];
+        for(int i = 0; i < this.iterations; i++) {
+            throughput[i] = this.iteration(operations);
+        }
+
+        double mean = Arrays.stream(throughput).average().orElse(0);
+        double variance = Arrays.stream(throughput).map(x -> (x - mean) * (x - mean)).sum()
+            / Math.max(1, throughput.length - 1);
+        double nanosPerOp = mean == 0 ? 0 : threads * 1e9 / mean;
+        this.out.printf("%-30s %7d %15.1f %12.1f %12.1f%n",
+            benchmark.name, threads, mean, 3 * Math.sqrt(variance), nanosPerOp);
+    }
+
+    private volatile boolean running;
+
+    // run every operation on its own thread for one iteration and return the operations per second
+    private double iteration(Operation[] operations) throws Exception {
+        int threads = operations.length;
+        long[] done = new long[threads];
+        Exception[] failure = new Exception[1];
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+
+        this.running = true;
+        for(int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                Operation operation = operations[thread];
+                long n = 0;
+                try {
+                    start.await();
+                    while(this.running) {
+                        operation.run();
+                        n++;
+                    }
+                } catch(Exception e) {
+                    failure[0] = e;
+                }
+                done[thread] = n;
+            }, "bench-" + t);
+            workers[t].start();
+        }
+
+        start.await();
+        long begin = System.nanoTime();
+        Thread.sleep(this.iterationMillis);
+        this.running = false;
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        if(failure[0] != null) {
+            throw failure[0];
+        }
+        return Arrays.stream(done).sum() * 1e9 / elapsed;
+    }
+}
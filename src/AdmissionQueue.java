@@ -0,0 +1,110 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * First come, first served queue of players waiting for a spot (on the
+ * server or in a dungeon). Each waiter is kept together with what is
+ * needed to let it in later (its callback or its session).
+ * It also keeps a running average of the time between two admissions,
+ * which is used to tell waiters roughly how long they will wait.
+ */
+class AdmissionQueue<K, V> {
+    private final LinkedHashMap<K, V> waiting = new LinkedHashMap<>();    // keeps the order of arrival
+    private long lastChange = 0;    // last admission, or the moment the queue stopped being empty
+    private double averageInterval = 0;   // milliseconds between two admissions
+
+    // add a waiter at the end of the queue (if it is not already waiting)
+    // and return its position, starting from 1
+    public synchronized int enqueue(K key, V value) {
+        if(this.waiting.isEmpty()) {
+            this.lastChange = System.currentTimeMillis();
+        }
+        this.waiting.putIfAbsent(key, value);
+        return this.position(key);
+    }
+
+    public synchronized boolean remove(K key) {
+        return this.waiting.remove(key) != null;
+    }
+
+    // only remove the waiter if it is the one holding the given value
+    public synchronized boolean remove(K key, V value) {
+        return this.waiting.remove(key, value);
+    }
+
+    // the waiter at the head of the queue, or null if nobody is waiting
+    public synchronized Map.Entry<K, V> peek() {
+        Iterator<Map.Entry<K, V>> iterator = this.waiting.entrySet().iterator();
+        if(!iterator.hasNext()) {
+            return null;
+        }
+        Map.Entry<K, V> head = iterator.next();
+        return new AbstractMap.SimpleImmutableEntry<>(head.getKey(), head.getValue());
+    }
+
+    // take the head of the queue out because it has been let in
+    public synchronized Map.Entry<K, V> poll() {
+        Map.Entry<K, V> head = this.peek();
+        if(head == null) {
+            return null;
+        }
+        this.waiting.remove(head.getKey());
+
+        long now = System.currentTimeMillis();
+        long interval = now - this.lastChange;
+        if(this.averageInterval == 0) {
+            this.averageInterval = interval;
+        } else {
+            this.averageInterval = 0.8 * this.averageInterval + 0.2 * interval;
+        }
+        this.lastChange = now;
+        return head;
+    }
+
+    public synchronized boolean contains(K key) {
+        return this.waiting.containsKey(key);
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.waiting.isEmpty();
+    }
+
+    public synchronized int size() {
+        return this.waiting.size();
+    }
+
+    // position of a waiter starting from 1, 0 if it is not waiting
+    public synchronized int position(K key) {
+        int position = 1;
+        for(K waiter : this.waiting.keySet()) {
+            if(waiter.equals(key)) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    // a copy of the queue in order, used to tell everybody their new position
+    public synchronized List<Map.Entry<K, V>> waiters() {
+        List<Map.Entry<K, V>> waiters = new ArrayList<>();
+        for(Map.Entry<K, V> waiter : this.waiting.entrySet()) {
+            waiters.add(new AbstractMap.SimpleImmutableEntry<>(waiter.getKey(), waiter.getValue()));
+        }
+        return waiters;
+    }
+
+    // a message for the waiter at the given position
+    public synchronized String describe(int position) {
+        String msg = "You are number " + position + " in the queue";
+        if(this.averageInterval == 0) {
+            return msg + ".";
+        }
+        long seconds = Math.round(position * this.averageInterval / 1000);
+        return msg + ", estimated wait " + seconds + " seconds.";
+    }
+}
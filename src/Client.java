@@ -5,17 +5,21 @@ public class Client {
     public static void main(String[] args) throws RemoteException {
         String hostname = "localhost";
         Integer port = 50015;
+        String node = null; // any node, if the server runs on several
         ClientImpl client;
 
         try {
             hostname = args[0];
             port = Integer.parseInt(args[1]);
+            if(args.length > 2) {
+                node = args[2];
+            }
         } catch(ArrayIndexOutOfBoundsException e) {
-            System.err.println("Error, wrong arguments: " + e.getMessage() + "\n <hostname> <registry port>");
+            System.err.println("Error, wrong arguments: " + e.getMessage() + "\n <hostname> <registry port> [node]");
         }
 
         try {
-            client = new ClientImpl(hostname, port);
+            client = new ClientImpl(hostname, port, node);
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                     try {
                         client.abort();
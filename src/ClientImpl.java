@@ -1,33 +1,69 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Serializable;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-class ClientImpl implements ClientInterface, Serializable {
+class ClientImpl implements ClientInterface {
     // information about the server
     private ServerInterface remoteServer;
     private String hostname;
     private int port;
+    private String service = "mud";    // the name looked up in the registry, "mud:<name>" for a given node
 
     // name of the dungeon
     private String mudName = "";
 
     // information about the client
+    private long session;   // id of the session the server keeps for us
     private String username;
     private String location;
     private List<String> inventory = new ArrayList<>();
     private boolean playing;    // used to indicate if the player is currently playing in a mud
 
-    // used to display changes to the mud world to a user
-    public String notice = "";
+    // what we have seen of the locations of the dungeon: the version of their
+    // things and the two parts of their description, so that looking again
+    // only gets what has changed
+    private Map<String, Integer> versions = new HashMap<>();
+    private Map<String, String> headers = new HashMap<>();
+    private Map<String, String> contents = new HashMap<>();
+    private Map<String, Set<String>> neighbours = new HashMap<>();  // locations seen next to each other, where a move may lead
+
+    // filled by the server's callbacks when we are let in after waiting in a queue
+    private final BlockingQueue<Long> admission = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> dungeonAdmission = new LinkedBlockingQueue<>();
+
+
+    // called by the server (on an RMI thread) with what other players have done
+    public void onEvents(List<Event> events) {
+        for(Event event : events) {
+            System.out.println("\n* " + event);
+        }
+    }
+
+    // called by the server once we get to the front of its queue
+    public void onAdmitted(long session) {
+        this.admission.offer(session);
+    }
+
+    // called by the server once we get to the front of a dungeon's queue
+    public void onDungeonAdmitted(String mudName, String location) {
+        this.dungeonAdmission.offer(location);
+    }
 
     // getters
     public String getUsername() {
@@ -92,6 +128,10 @@ class ClientImpl implements ClientInterface, Serializable {
                     this.listMUDS();
                 } else if(newCommand[0].equals("/2")) {
                     this.listUsers();
+                } else if(newCommand[0].equals("/stats")) {
+                    System.out.println(this.remoteServer.dungeonStats());
+                } else if(newCommand[0].equals("/admin")) {
+                    System.out.println(this.remoteServer.serverStats());
                 } else if(newCommand[0].equals("/menu")) {
                     System.out.println(this.remoteServer.menu());
                 } else if(newCommand[0].equals("/inv")) {
@@ -109,7 +149,7 @@ class ClientImpl implements ClientInterface, Serializable {
 
     private void establishServerConnection() throws RemoteException {
         try {
-            String url = "rmi://" + this.hostname + ":" + this.port + "/mud";
+            String url = "rmi://" + this.hostname + ":" + this.port + "/" + this.service;
             this.remoteServer = (ServerInterface) Naming.lookup(url);
         } catch(NotBoundException e) {
             System.err.println("Not bound url: " + e.getMessage());
@@ -148,69 +188,86 @@ class ClientImpl implements ClientInterface, Serializable {
 
     // a method that handles logging in to the game server
     /**
-     * This can be done in a more compact way with less remote calls
-     * Will make sure to fix it if I have time left.
-     * What this does -> it checks to see if the server is full
-     * if it is not -> makes a remote call to the log in method and logs in the user
-     * if it is -> makes a remote call to the same method but this time it enters 
-     * the block which handles when the server is full. Then every 5 seconds (so as to
-     * not overload the server) we make a call to the same method to see if room has been freed.
+     * Asks for a username and sends the log in together with the request
+     * for an empty inventory in one batch. The server checks the name and
+     * the free spots atomically. If the name is taken we ask for another one,
+     * if the server is full we have been added to the waiting list and
+     * wait until the server calls onAdmitted with our session.
      */
     private void joinGameServer() throws RemoteException {
-        boolean isServerFull = this.remoteServer.isServerFull();
-        if(isServerFull) {
-            System.out.println("Server full. You will be added to the waiting list");
-            this.remoteServer.playerLogIn(this);
-            while(!this.remoteServer.playerLogIn(this)) {
-                try {
-                    System.out.println("Waiting for authorization. . .");
-                    Thread.sleep(5000);
-                } catch(InterruptedException e) {
-                    return;
-                }
-            }
+        this.setUsername(this.chooseAction("Enter a username: "));
+        List<Result> results = this.logIn();
+        while(results.get(0).getStatus() == Result.Status.NAME_TAKEN) {
+            System.out.println("A user with this name already exists. Choose a different one.");
+            this.setUsername(this.chooseAction("Enter a username: "));
+            results = this.logIn();
+        }
+
+        if(results.get(0).isOk()) {
+            this.session = results.get(0).getNumber();
+            this.inventory = results.get(1).getList();  // set up the players inventory (empty array of [ ])
         } else {
-            this.remoteServer.playerLogIn(this);
+            System.out.println("Server full. You have been added to the waiting list.");
+            System.out.println(results.get(0).getText());
+            try {
+                System.out.println("Waiting for authorization. . .");
+                this.session = this.admission.take();
+            } catch(InterruptedException e) {
+                return;
+            }
+            this.setInventory();    // set up the players inventory (empty array of [ ])
         }
-        this.setInventory();    // set up the players inventory (empty array of [ ])
         System.out.println("You have joined the server " + this.hostname);
     }
 
+    private List<Result> logIn() throws RemoteException {
+        return this.remoteServer.execute(0, Arrays.asList(Command.logIn(this.username, this), Command.inventory()));
+    }
+
     private void disconnectFromServer() throws RemoteException {
         System.out.println("Leaving the server. . .");
-        this.remoteServer.playerDisconnect(this);
+        if(this.session == 0 && this.username != null) {   // still waiting to get in
+            this.remoteServer.execute(0, Arrays.asList(Command.leaveQueue(this.username, this)));
+        }
+        this.remoteServer.playerDisconnect(this.session);
+        try {
+            UnicastRemoteObject.unexportObject(this, true);    // stop receiving events
+        } catch(NoSuchObjectException e) {
+            assert true;    // already unexported
+        }
         this.remoteServer = null;
         this.hostname = null;
         this.port = 0;  // cannot set integer to null
         this.username = null;
+        this.session = 0;
     }
 
     // create a MUD
     private void createDungeonInstance(String name) throws RemoteException {
-        boolean exists = this.remoteServer.mudExists(name);
-        boolean noSpot = this.remoteServer.spotForMUD();
-        if(exists) {
+        /**
+         * Every player can set a limit of users in his created MUD
+         * Maybe come back and change that so that all MUDs
+         * have the same limit (set by the programmer)
+         * Tried using a Scanner here but it messes up with IntelliJ
+         * Advice taken from https://stackoverflow.com/questions/14359930/in-java-how-do-i-check-if-input-is-a-number
+         */
+        String input = this.chooseAction("Maximum number of players: ");
+        int num = 2;    // default
+        try {
+            num = Integer.parseInt(input);
+        } catch(NumberFormatException e) {
+            System.err.println("Error, wrong input.");
+            this.menu();
+        }
+        num = Math.abs(num);    // ensure no negative numbers are processed
+
+        // the server checks the name and the free spots when creating it
+        Result result = this.remoteServer.execute(this.session, Arrays.asList(Command.createDungeon(name, num))).get(0);
+        if(result.getStatus() == Result.Status.DUNGEON_EXISTS) {
             System.err.println("Error, MUD game with that name already exists.");
-        } else if(noSpot) {
+        } else if(result.getStatus() == Result.Status.NO_SPOT_FOR_DUNGEON) {
             System.err.println("Error, maximum number of MUDs created.");
         } else {
-            /**
-             * Every player can set a limit of users in his created MUD
-             * Maybe come back and change that so that all MUDs
-             * have the same limit (set by the programmer)
-             * Tried using a Scanner here but it messes up with IntelliJ
-             * Advice taken from https://stackoverflow.com/questions/14359930/in-java-how-do-i-check-if-input-is-a-number
-             */
-            String input = this.chooseAction("Maximum number of players: ");
-            int num = 2;    // default
-            try {
-                num = Integer.parseInt(input);
-            } catch(NumberFormatException e) {
-                System.err.println("Error, wrong input.");
-                this.menu();
-            }
-            num = Math.abs(num);    // ensure no negative numbers are processed
-            this.remoteServer.createDungeonInstance(name, num, this);
             System.out.println("Dungeon created.");
             /**
              * think about immediately adding the user to a dungeon
@@ -221,11 +278,26 @@ class ClientImpl implements ClientInterface, Serializable {
         }
     }
 
-    // TODO: add a queue 
+    // if the dungeon is full we are put in its queue and wait
+    // until the server calls onDungeonAdmitted
     private void joinDungeonInstance(String name) throws RemoteException {
-        boolean exists = this.remoteServer.mudExists(name);
-        if(exists) {
+        // joining and getting the start location is a single command
+        Result joined = this.remoteServer.execute(this.session, Arrays.asList(Command.joinDungeon(name))).get(0);
+        String location = joined.getText();
+        if(joined.getStatus() == Result.Status.DUNGEON_FULL) {
+            System.out.println("The dungeon is full. You have been added to its queue.");
+            System.out.println(joined.getText());
+            try {
+                location = this.dungeonAdmission.take();
+            } catch(InterruptedException e) {
+                return;
+            }
+        }
+
+        if(joined.isOk() || joined.getStatus() == Result.Status.DUNGEON_FULL) {
+            this.forgetLocations();
             this.setMUDName(name);
+            this.setLocation(location);
             // proceed with gameplay
                         
             // used if and only if the user forcefully exits out of the game
@@ -240,7 +312,7 @@ class ClientImpl implements ClientInterface, Serializable {
                 public void run() {
                     try {
                         System.out.println("\nForcefully shutdown. . . Emptying inventory and data is deleted.");
-                        user.remoteServer.playerForceShutdown(user);    // call a remote method which removes the players data from the mud instance
+                        user.remoteServer.playerForceShutdown(user.session);    // call a remote method which removes the players data from the mud instance
                         user.disconnectFromServer();    // disconnect the user from the server
                         return;
                     } catch(RemoteException e) {
@@ -256,78 +328,71 @@ class ClientImpl implements ClientInterface, Serializable {
 
     private void gameLoop() throws RemoteException {
         // main game loop
-        // if the player cannot join a dungeon instance, display a message and return to the main menu
-        if(!this.remoteServer.playerJoinDungeon(this, this.getMUDName())) { // playerJoinDungeon returns a boolean, if it's false it means the player hasn't(can't) join the specified mud
-            System.err.println("Error, cannot join the specified dungeon instance. Try again later.");
-            this.menu();
-        } else {
-            // player has successfully joined the dungeon
-            System.out.println("You have successfully joined " + this.getMUDName());
-            this.playing = true;    // flag to signal the user is playing
-            this.gameplayInfo();    // display information about commands
-            this.setLocation(this.remoteServer.setStartLocation(this)); // set the start location
-            System.out.println("Start location has been set to [" + this.getUserLocation() + "].");
-            // this.displayMUD();  // used to display the mud for the user (for debugging)
-
-            while(this.playing) {   // the main loop
-                
-                String command = this.chooseAction("").toLowerCase().trim();    // ask for command
-
-                if(command.startsWith("/")) {
-                    if(!this.notice.equals("")) {
-                        System.out.println(this.notice);
-                    }
-                    String[] newCommand = command.split(" ");
-                    if(newCommand[0].equals("/help")) {
-                        this.gameplayInfo();
-                    } else if(newCommand[0].equals("/move")) {
-                        if(newCommand[1].matches("north|east|south|west")) {
-                            this.playerMove(newCommand[1]);
-                        } else {
-                            System.err.println("Error, wrong direction.");
-                        }
-                    } else if(newCommand[0].equals("/display")) {
-                        this.displayMUD();  // TODO: REMOVE THIS IN FINAL BUILD. USED FOR DEBUGGING
-                    } else if(newCommand[0].equals("/look")) {
-                        System.out.println(this.playerLook());
-                    } else if(newCommand[0].equals("/exit")) {
-                        this.remoteServer.playerForceShutdown(this);
-                        System.out.println("You have left the dungeon [" + this.getMUDName() + "].");
-                        this.playing = false;
-                        this.setInventory();
-                        this.menu();
-                    } else if(newCommand[0].equals("/pick")) {
-                        this.playerPickUp(newCommand[1]);
-                    } else if(newCommand[0].equals("/inventory")) {
-                        this.openInventory();
+        // the player has already joined the dungeon and has been placed at the start location
+        System.out.println("You have successfully joined " + this.getMUDName());
+        this.playing = true;    // flag to signal the user is playing
+        this.gameplayInfo();    // display information about commands
+        System.out.println("Start location has been set to [" + this.getUserLocation() + "].");
+        // this.displayMUD();  // used to display the mud for the user (for debugging)
+
+        while(this.playing) {   // the main loop
+            
+            String line = this.chooseAction("").trim();    // ask for command
+            String command = line.toLowerCase();
+
+            if(command.startsWith("/")) {
+                String[] newCommand = command.split(" ");
+                if(newCommand[0].equals("/help")) {
+                    this.gameplayInfo();
+                } else if(newCommand[0].equals("/move")) {
+                    if(newCommand[1].matches("north|east|south|west")) {
+                        this.playerMove(newCommand[1]);
+                    } else {
+                        System.err.println("Error, wrong direction.");
                     }
-                } else {
-                    System.err.println("Error, invalid command. Try again.");
+                } else if(newCommand[0].equals("/display")) {
+                    this.displayMUD();  // TODO: REMOVE THIS IN FINAL BUILD. USED FOR DEBUGGING
+                } else if(newCommand[0].equals("/look")) {
+                    System.out.println(this.playerLook());
+                } else if(newCommand[0].equals("/exit")) {
+                    this.remoteServer.playerForceShutdown(this.session);
+                    System.out.println("You have left the dungeon [" + this.getMUDName() + "].");
+                    this.playing = false;
+                    this.setInventory();
+                    this.menu();
+                } else if(newCommand[0].equals("/pick")) {
+                    this.playerPickUp(newCommand[1]);
+                } else if(newCommand[0].equals("/goto") && newCommand.length > 1) {
+                    this.playerGoTo(line.split(" ")[1]);    // location names keep their case
+                } else if(newCommand[0].equals("/inventory")) {
+                    this.openInventory();
                 }
+            } else {
+                System.err.println("Error, invalid command. Try again.");
             }
-
         }
         System.out.println("exiting game loop");
     }
 
+    // the server checks that the item is there and is not a player
+    // and takes it in one command, so nobody can grab it in between
     private void playerPickUp(String thing) throws RemoteException {
-        boolean exists = this.remoteServer.itemExists(this, thing);
-        boolean hasFreeSpace = this.hasFreeInventorySpace();
-        boolean isUser = this.remoteServer.isUser(this, thing);
+        if(!this.hasFreeInventorySpace()) {
+            System.out.println("You do not have free space in your inventory.");
+            return;
+        }
 
-        if(exists && hasFreeSpace) {
+        Result result = this.remoteServer.execute(this.session, Arrays.asList(Command.pickUp(thing))).get(0);
+        if(result.isOk()) {
             System.out.println("Picking up an item. . .");
             for(int i = 0; i < this.getInventory().size(); i++) {
                 if(this.getInventory().get(i).equals("[ ]")) {
                     this.getInventory().set(i, "[" + thing + "]");
                     System.out.println("Item [" + thing + "] picked up.");
-                    this.remoteServer.itemPickedUp(this, thing);
                     break;
                 }
             }
-        } else if(!hasFreeSpace){
-            System.out.println("You do not have free space in your inventory.");
-        } else if(isUser) {
+        } else if(result.getStatus() == Result.Status.IS_PLAYER) {
             System.out.println("Fellow adventurers prefer to not be picked up.");
         } else {
             System.out.println("Looking around, you cannot seem to find such an item.");
@@ -341,14 +406,76 @@ class ClientImpl implements ClientInterface, Serializable {
 
     // display information about the current location the player is in
     private String playerLook() throws RemoteException {
-        return this.remoteServer.locationInfo(this);
+        return this.remember(this.remoteServer.execute(this.session, Arrays.asList(this.look())).get(0));
+    }
+
+    // a look telling the server what we already have of where we are and of
+    // where a move from here may lead (and of the other locations given), so
+    // the look sent with a move gets only what we do not have of where we end up
+    private Command look(String... also) {
+        Map<String, Integer> known = new HashMap<>();
+        this.addKnown(known, this.location);
+        for(String neighbour : this.neighbours.getOrDefault(this.location, new HashSet<>())) {
+            this.addKnown(known, neighbour);
+        }
+        for(String location : also) {
+            this.addKnown(known, location);
+        }
+        return Command.look(known);
+    }
+
+    private void addKnown(Map<String, Integer> known, String location) {
+        if(this.versions.containsKey(location)) {
+            known.put(location, this.versions.get(location));
+        }
+    }
+
+    // keep what the server has sent about a location and describe it
+    private String remember(Result result) {
+        String location = result.getText();
+        if(result.getStatus() != Result.Status.NOT_MODIFIED) {
+            List<String> parts = result.getList();
+            if(parts.size() == 2) {
+                this.headers.put(location, parts.get(0));
+            }
+            this.contents.put(location, parts.get(parts.size() - 1));
+            this.versions.put(location, (int)result.getNumber());
+        }
+        return this.headers.get(location) + this.contents.get(location);
+    }
+
+    // locations of another dungeon may have the same names
+    private void forgetLocations() {
+        this.versions.clear();
+        this.headers.clear();
+        this.contents.clear();
+        this.neighbours.clear();
+    }
+
+    // walk to a location; the server finds the way and walks it in one call
+    private void playerGoTo(String target) throws RemoteException {
+        List<Result> results = this.remoteServer.execute(this.session, Arrays.asList(Command.goTo(target), this.look(target)));
+        if(!results.get(0).isOk()) {
+            System.err.println("Error, there is no way to [" + target + "].");
+            return;
+        }
+        this.setLocation(results.get(0).getText());
+        System.out.println("Your new location is [" + this.getUserLocation() + "].");
+        System.out.println(this.remember(results.get(1)));
     }
 
     // handle player movement around the mud
+    // the move and the look at the new location are sent in one batch
     private void playerMove(String dest) throws RemoteException {
-        this.setLocation(this.remoteServer.playerMove(this, dest)); // set the location
+        String origin = this.location;
+        List<Result> results = this.remoteServer.execute(this.session, Arrays.asList(Command.move(dest), this.look()));
+        this.setLocation(results.get(0).getText()); // set the location
+        if(!this.location.equals(origin)) {
+            this.neighbours.computeIfAbsent(origin, location -> new HashSet<>()).add(this.location);
+            this.neighbours.computeIfAbsent(this.location, location -> new HashSet<>()).add(origin);
+        }
         System.out.println("Your new location is [" + this.getUserLocation() + "].");
-        this.playerLook();  // display information about the new location
+        System.out.println(this.remember(results.get(1)));  // display information about the new location
     }
 
     // only used for debugging; will remove later
@@ -385,6 +512,7 @@ class ClientImpl implements ClientInterface, Serializable {
             "\t|Move East: \t\t /move east\n" +
             "\t|Move South: \t\t /move south\n" +
             "\t|Move West: \t\t /move west\n" +
+            "\t|Walk to a location: \t\t /goto <location>\n" +
             "\t|~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~|\n" +
             "\t|If you wish to interact with the world\n" +
             "\t|Look around: \t\t /look\n" +
@@ -399,6 +527,14 @@ class ClientImpl implements ClientInterface, Serializable {
     }
 
     ClientImpl(String _hostname, int _port) throws RemoteException {
+        this(_hostname, _port, null);
+    }
+
+    // connect to the given node of the server, or to the default one if null
+    ClientImpl(String _hostname, int _port, String _node) throws RemoteException {
+        if(_node != null) {
+            this.service = "mud:" + _node;
+        }
         System.setProperty("java.security.policy" , ".policy");
         System.setSecurityManager(new SecurityManager());
         try {
@@ -406,15 +542,8 @@ class ClientImpl implements ClientInterface, Serializable {
             this.setPort(_port);    // set the port
             System.out.println("Hostname: " + this.hostname + " on port: " + this.port + "\n"); // info for debugging purpose
             this.establishServerConnection(); // establish a connection to the server (sets up RMI)
-            // next couple of lines handle "registering"
-            // ask the user for a name, check if it already exists in the server
-            // if it does, ask again
-            // if it doesn't, set it and proceed
-            this.setUsername(this.chooseAction("Enter a username: "));
-            while(this.remoteServer.playerExists(this)) {
-                System.out.println("A user with this name already exists. Choose a different one.");
-                this.setUsername(this.chooseAction("Enter a username: "));
-            }
+            UnicastRemoteObject.exportObject(this, 0);  // so that the server can push events to us
+            // handles "registering": asks for a unique name and logs in
             this.joinGameServer();
             this.menu();
         } catch(NullPointerException e) {
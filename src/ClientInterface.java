@@ -1,6 +1,19 @@
-interface ClientInterface {
-    /*
-     * Maybe add some funcs here in the future.
-     * Currently not used for anything
-    */
-}
\ No newline at end of file
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import java.util.List;
+
+/**
+ * Callback the server uses to push what happens in the world to a player.
+ * Clients export themselves and hand the stub over when logging in.
+ */
+public interface ClientInterface extends Remote {
+    // events are delivered in the order they happened, several at a time
+    void onEvents(List<Event> events) throws RemoteException;
+
+    // a waiting player has been let in to the server with the given session
+    void onAdmitted(long session) throws RemoteException;
+
+    // a waiting player has been let in to a dungeon and placed at the location
+    void onDungeonAdmitted(String mudName, String location) throws RemoteException;
+}
@@ -0,0 +1,121 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single command of a batch sent with ServerInterface.execute.
+ * Some commands are compound ones (e.g. PICK_UP checks that the item is
+ * there and is not a player before taking it) and run atomically on the
+ * server, so the client does not need several calls for one action.
+ */
+public class Command implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        LOG_IN,         // reserve the username and log in; starts a session for the rest of the batch
+        LEAVE_QUEUE,    // give up waiting for a spot on the server
+        INVENTORY,      // an empty inventory for a new player
+        CREATE_DUNGEON, // create an instance if the name is free and there is a spot for it
+        JOIN_DUNGEON,   // join an instance and get placed at its start location
+        LEAVE_DUNGEON,  // leave the current instance
+        MOVE,           // move in a direction
+        LOOK,           // describe the current location (only what changed, if the client says what it has)
+        PICK_UP,        // take an item if it is at the current location and is not a player
+        GO_TO           // walk the shortest way to a location, every step in one command
+    }
+
+    private final Type type;
+    private final String arg;
+    private final int num;
+    private final ClientInterface listener;
+    private final HashMap<String, Integer> known; // for a LOOK, the versions of the locations the client has
+
+    private Command(Type type, String arg, int num) {
+        this(type, arg, num, null);
+    }
+
+    private Command(Type type, String arg, int num, ClientInterface listener) {
+        this(type, arg, num, listener, null);
+    }
+
+    private Command(Type type, String arg, int num, ClientInterface listener, HashMap<String, Integer> known) {
+        this.type = type;
+        this.arg = arg;
+        this.num = num;
+        this.listener = listener;
+        this.known = known;
+    }
+
+    public static Command logIn(String username) {
+        return new Command(Type.LOG_IN, username, 0);
+    }
+
+    // log in and register the callback which gets the events of the world
+    public static Command logIn(String username, ClientInterface listener) {
+        return new Command(Type.LOG_IN, username, 0, listener);
+    }
+
+    // the listener must be the one the player was queued with
+    public static Command leaveQueue(String username, ClientInterface listener) {
+        return new Command(Type.LEAVE_QUEUE, username, 0, listener);
+    }
+
+    public static Command inventory() {
+        return new Command(Type.INVENTORY, null, 0);
+    }
+
+    public static Command createDungeon(String name, int maxPlayers) {
+        return new Command(Type.CREATE_DUNGEON, name, maxPlayers);
+    }
+
+    public static Command joinDungeon(String name) {
+        return new Command(Type.JOIN_DUNGEON, name, 0);
+    }
+
+    public static Command leaveDungeon() {
+        return new Command(Type.LEAVE_DUNGEON, null, 0);
+    }
+
+    public static Command move(String direction) {
+        return new Command(Type.MOVE, direction, 0);
+    }
+
+    public static Command look() {
+        return new Command(Type.LOOK, null, 0);
+    }
+
+    // look, when the client has the given versions of these locations (see Result);
+    // the location the player ends up at is picked by the server, so a look after a
+    // move can carry the versions of the places the move may lead to
+    public static Command look(Map<String, Integer> known) {
+        return new Command(Type.LOOK, "", 0, null, new HashMap<>(known));
+    }
+
+    public static Command pickUp(String item) {
+        return new Command(Type.PICK_UP, item, 0);
+    }
+
+    public static Command goTo(String location) {
+        return new Command(Type.GO_TO, location, 0);
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getArg() {
+        return this.arg;
+    }
+
+    public int getNum() {
+        return this.num;
+    }
+
+    public ClientInterface getListener() {
+        return this.listener;
+    }
+
+    public Map<String, Integer> getKnown() {
+        return this.known;
+    }
+}
@@ -0,0 +1,43 @@
+/***********************************************************************
+ * cs3524.solutions.mud.Direction
+ ***********************************************************************/
+
+// The directions a route can go in. Lets the world keep a direction in
+// a byte instead of a string.
+public enum Direction
+{
+    NORTH, EAST, SOUTH, WEST, UP, DOWN;
+
+    private final String _word = name().toLowerCase();
+
+    private static final Direction[] ALL = values();
+
+    /**
+     * The direction written as in the files and commands (e.g. "north").
+     */
+    public String word()
+    {
+        return _word;
+    }
+
+    public static Direction of( int ordinal )
+    {
+        return ALL[ordinal];
+    }
+
+    /**
+     * The direction for a word, or null if it is not one.
+     */
+    public static Direction parse( String word )
+    {
+        switch (word) {
+            case "north": return NORTH;
+            case "east":  return EAST;
+            case "south": return SOUTH;
+            case "west":  return WEST;
+            case "up":    return UP;
+            case "down":  return DOWN;
+            default:      return null;
+        }
+    }
+}
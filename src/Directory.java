@@ -0,0 +1,106 @@
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which node owns which dungeon, kept in the rmi registry the nodes share:
+ * every node is bound as "node:<name>" and every dungeon as
+ * "dungeon:<name>", bound to the node which runs it. Binding fails if the
+ * name is bound already, so two nodes can never both create a dungeon of
+ * the same name. Owners are looked up once and remembered, a dungeon
+ * never moves while its node is up; whoever gets a RemoteException from
+ * an owner forgets it, so the next lookup asks the registry again.
+ */
+class Directory {
+    private static final String NODE = "node:";
+    private static final String DUNGEON = "dungeon:";
+
+    private final Registry registry;
+    private final Map<String, NodeInterface> owners = new ConcurrentHashMap<>();
+
+    Directory(Registry registry) {
+        this.registry = registry;
+    }
+
+    public void addNode(String name, NodeInterface node) throws RemoteException {
+        this.registry.rebind(NODE + name, node);
+    }
+
+    // bind the name to the stub if nobody else has it, used for the default "mud"
+    public boolean bindIfFree(String name, Remote node) throws RemoteException {
+        try {
+            this.registry.bind(name, node);
+            return true;
+        } catch(AlreadyBoundException e) {
+            return false;
+        }
+    }
+
+    // the other nodes, the ones which do not answer are left out
+    public List<NodeInterface> nodes(String except) throws RemoteException {
+        List<NodeInterface> nodes = new ArrayList<>();
+        for(String name : this.registry.list()) {
+            if(!name.startsWith(NODE) || name.equals(NODE + except)) {
+                continue;
+            }
+            try {
+                nodes.add((NodeInterface)this.registry.lookup(name));
+            } catch(NotBoundException e) {
+                // gone in the meantime
+            }
+        }
+        return nodes;
+    }
+
+    // take the name of a dungeon for the node, false if another node has it
+    public boolean claim(String dungeon, NodeInterface node) throws RemoteException {
+        try {
+            this.registry.bind(DUNGEON + dungeon, node);
+        } catch(AlreadyBoundException e) {
+            return false;
+        }
+        this.owners.put(dungeon, node);
+        return true;
+    }
+
+    // take the name back after a restart, whoever had it before
+    public void reclaim(String dungeon, NodeInterface node) throws RemoteException {
+        this.registry.rebind(DUNGEON + dungeon, node);
+        this.owners.put(dungeon, node);
+    }
+
+    public void release(String dungeon) {
+        this.owners.remove(dungeon);
+        try {
+            this.registry.unbind(DUNGEON + dungeon);
+        } catch(NotBoundException | RemoteException e) {
+            // nothing to release
+        }
+    }
+
+    // the node which runs the dungeon, null if there is no such dungeon
+    public NodeInterface owner(String dungeon) throws RemoteException {
+        NodeInterface owner = this.owners.get(dungeon);
+        if(owner != null) {
+            return owner;
+        }
+        try {
+            owner = (NodeInterface)this.registry.lookup(DUNGEON + dungeon);
+        } catch(NotBoundException e) {
+            return null;
+        }
+        this.owners.put(dungeon, owner);
+        return owner;
+    }
+
+    // the owner did not answer, look it up again next time
+    public void forget(String dungeon) {
+        this.owners.remove(dungeon);
+    }
+}
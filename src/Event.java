@@ -0,0 +1,45 @@
+import java.io.Serializable;
+
+/**
+ * Something that happened in a dungeon instance, pushed by the server to
+ * the players of that instance through ClientInterface.onEvents.
+ */
+public class Event implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        JOINED,     // a player entered the instance
+        LEFT,       // a player left the instance
+        MOVED,      // a player moved between locations
+        PICKED_UP,  // a player picked up an item
+        QUEUED      // news about the position of a player waiting to get in
+    }
+
+    private final Type type;
+    private final String player;
+    private final String location;
+    private final String text;
+
+    public Event(Type type, String player, String location, String text) {
+        this.type = type;
+        this.player = player;
+        this.location = location;
+        this.text = text;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getPlayer() {
+        return this.player;
+    }
+
+    public String getLocation() {
+        return this.location;
+    }
+
+    public String toString() {
+        return this.text;
+    }
+}
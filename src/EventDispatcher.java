@@ -0,0 +1,131 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers events to the clients from a pool of its own, so the command
+ * which caused an event never waits for a remote call to a client.
+ * Each client has a bounded queue. Whatever piled up while the previous
+ * delivery was running is sent with a single onEvents call, and if a
+ * client is too slow to keep up the oldest events are dropped. A client
+ * which cannot be reached is given up on: nothing more is sent to it
+ * until it is removed, so a dead client costs no more remote calls.
+ */
+class EventDispatcher {
+    private static final int QUEUE_SIZE = 64;   // events kept for a client which is not keeping up
+
+    private final ExecutorService pool;
+    private final Map<ClientInterface, Channel> channels = new ConcurrentHashMap<>();
+    private final Set<ClientInterface> failed = ConcurrentHashMap.newKeySet();  // clients which could not be reached
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // the events waiting for one client
+    private class Channel implements Runnable {
+        private final ClientInterface client;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Channel(ClientInterface client) {
+            this.client = client;
+        }
+
+        void offer(Event event) {
+            while(!this.queue.offer(event)) {
+                if(this.queue.poll() != null) {
+                    dropped.increment();
+                }
+            }
+            if(this.scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+
+        public void run() {
+            List<Event> events = new ArrayList<>();
+            this.queue.drainTo(events);
+            try {
+                if(!events.isEmpty()) {
+                    this.client.onEvents(events);
+                    delivered.add(events.size());
+                }
+            } catch(RemoteException e) {
+                // the client is gone, stop sending it anything
+                failed.add(this.client);
+                channels.remove(this.client);
+                this.queue.clear();
+                return;
+            } finally {
+                this.scheduled.set(false);
+            }
+            if(!this.queue.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+    }
+
+    // a callback other than onEvents, e.g. telling a waiting player it has been let in
+    interface Notification {
+        void send(ClientInterface client) throws RemoteException;
+    }
+
+    EventDispatcher(int threads) {
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread dispatcher = new Thread(runnable, "mud-events");
+            dispatcher.setDaemon(true);
+            return dispatcher;
+        });
+    }
+
+    public void publish(ClientInterface client, Event event) {
+        if(client == null) {
+            return;
+        }
+        if(this.failed.contains(client)) {
+            this.dropped.increment();
+            return;
+        }
+        this.channels.computeIfAbsent(client, Channel::new).offer(event);
+    }
+
+    // make a single callback from the pool; if the client cannot be
+    // reached the failure action (may be null) runs instead
+    public void notify(ClientInterface client, Notification notification, Runnable failure) {
+        if(client == null) {
+            return;
+        }
+        this.pool.execute(() -> {
+            try {
+                notification.send(client);
+            } catch(RemoteException e) {
+                this.failed.add(client);
+                this.channels.remove(client);
+                if(failure != null) {
+                    failure.run();
+                }
+            }
+        });
+    }
+
+    // forget a client which has left the server
+    public void remove(ClientInterface client) {
+        if(client != null) {
+            this.channels.remove(client);
+            this.failed.remove(client);
+        }
+    }
+
+    public String stats() {
+        return "events delivered " + this.delivered.sum() + ", dropped " + this.dropped.sum()
+            + ", clients " + this.channels.size() + ", unreachable " + this.failed.size();
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Where dungeon instances nobody has played in for a while are kept
+ * instead of memory: one file per instance with its snapshot (see
+ * MUD.snapshot, which only has the locations the instance has changed),
+ * compressed. A file replaces the previous one only once it is on disk,
+ * and is deleted once the instance is back in memory.
+ */
+class Hibernation {
+    private static final String SUFFIX = ".mud";
+
+    private final File dir;
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder woken = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    Hibernation(File dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir.toPath());
+    }
+
+    public void write(String mud, byte[] state) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(state.length / 4 + 64);
+        try(DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+            out.write(state);
+        }
+        File file = this.file(mud);
+        File temp = new File(this.dir, file.getName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.wrap(compressed.toByteArray());
+            while(data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.saved.increment();
+        this.bytes.add(compressed.size());
+    }
+
+    public MUD read(String mud) throws IOException {
+        try(DataInputStream in = this.open(mud)) {
+            MUD restored = MUD.restore(in);
+            this.woken.increment();
+            return restored;
+        }
+    }
+
+    // the maximum number of players of a saved instance, without reading the rest of it
+    public int maxPlayers(String mud) throws IOException {
+        try(DataInputStream in = this.open(mud)) {
+            in.readUTF();   // the files of the world
+            in.readUTF();
+            in.readUTF();
+            return in.readInt();
+        }
+    }
+
+    public void delete(String mud) {
+        this.file(mud).delete();
+    }
+
+    // the instances saved here, e.g. by the last run of the server
+    public List<String> list() {
+        List<String> muds = new ArrayList<>();
+        String[] names = this.dir.list();
+        if(names != null) {
+            for(String name : names) {
+                if(name.endsWith(SUFFIX)) {
+                    muds.add(URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return muds;
+    }
+
+    public String stats() {
+        return "hibernated " + this.saved.sum() + " (" + this.bytes.sum() + " bytes written), woken " + this.woken.sum();
+    }
+
+    private DataInputStream open(String mud) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(this.file(mud)))));
+    }
+
+    private File file(String mud) {
+        return new File(this.dir, URLEncoder.encode(mud, StandardCharsets.UTF_8) + SUFFIX);
+    }
+}
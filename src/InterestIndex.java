@@ -0,0 +1,63 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who can see what happens at each location of a MUD instance: the
+ * players standing there and the players in the locations with a route
+ * to it (they look down the route). Kept up to date as players enter,
+ * move and leave, so telling players about a change costs as much as
+ * there are players near it, not as many as there are in the instance.
+ * Only changed by the thread running the instance, read by any thread.
+ */
+class InterestIndex {
+    private final WorldTemplate template;
+    // location id -> the players who see it; only locations somebody sees are here
+    private final Map<Integer, Set<String>> watchers = new ConcurrentHashMap<>();
+
+    InterestIndex(WorldTemplate template) {
+        this.template = template;
+    }
+
+    // the player is now at v, so it sees v and where the routes out of v lead
+    public void enter(String player, int v) {
+        this.watch(player, v);
+        for(int i = 0; i < this.template.routeCount(v); i++) {
+            this.watch(player, this.template.routeDest(v, i));
+        }
+    }
+
+    public void leave(String player, int v) {
+        this.unwatch(player, v);
+        for(int i = 0; i < this.template.routeCount(v); i++) {
+            this.unwatch(player, this.template.routeDest(v, i));
+        }
+    }
+
+    public void move(String player, int from, int to) {
+        this.leave(player, from);
+        this.enter(player, to);
+    }
+
+    // the players who see location v, read only
+    public Set<String> watchers(int v) {
+        Set<String> players = this.watchers.get(v);
+        return players == null ? Collections.emptySet() : Collections.unmodifiableSet(players);
+    }
+
+    public void clear() {
+        this.watchers.clear();
+    }
+
+    private void watch(String player, int v) {
+        this.watchers.computeIfAbsent(v, k -> ConcurrentHashMap.newKeySet()).add(player);
+    }
+
+    private void unwatch(String player, int v) {
+        Set<String> players = this.watchers.get(v);
+        if(players != null && players.remove(player) && players.isEmpty()) {
+            this.watchers.remove(v);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of every change made to the dungeon instances, so
+ * that they survive a restart of the server. The workers of the
+ * instances only put a small record in a queue (no I/O, no lock); a
+ * background thread wakes up every few milliseconds, writes everything
+ * that piled up and syncs the file once for the whole group.
+ * A change is thus on disk at most one commit interval after it was
+ * made, and a command never waits for the disk.
+ *
+ * The journal is split in segments (journal-N.log). From time to time
+ * the server starts a new segment, saves a snapshot of every instance
+ * and deletes the older segments, which the snapshots now cover.
+ * Recovery loads the snapshots and replays the segments, skipping the
+ * records a snapshot already contains (every instance numbers its own
+ * changes, and a snapshot remembers the last number it includes).
+ *
+ * Record: length, type, instance, number, arguments, CRC32. A record
+ * cut short by a crash fails its checksum and ends the replay.
+ */
+class Journal implements Runnable {
+    static final byte CREATE = 0;           // max players, edges, messages, things files
+    static final byte ADD_THING = 1;        // location, thing
+    static final byte DEL_THING = 2;        // location, thing
+    static final byte MOVE_THING = 3;       // location, direction, thing
+    static final byte ADD_PLAYER = 4;       // player
+    static final byte REMOVE_PLAYER = 5;    // player, location
+
+    private static final String SEGMENT = "journal-";
+    private static final String SNAPSHOT = "snapshot-";
+
+    private static class Record {
+        final byte type;
+        final String mud;
+        final long number;
+        final String[] args;
+
+        Record(byte type, String mud, long number, String[] args) {
+            this.type = type;
+            this.mud = mud;
+            this.number = number;
+            this.args = args;
+        }
+    }
+
+    private final File dir;
+    private final long commitNanos;
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    private FileChannel channel;
+    private long segment;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream out = new DataOutputStream(this.buffer);
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);  // one record
+    private final DataOutputStream fields = new DataOutputStream(this.scratch);
+    private final CRC32 crc = new CRC32();
+
+    private final LongAdder appended = new LongAdder();
+    private long written = 0;
+    private long syncs = 0;
+    private long bytes = 0;
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // start a new segment after the ones already in the directory
+    Journal(File dir, long commitMillis) throws IOException {
+        this.dir = dir;
+        this.commitNanos = commitMillis * 1_000_000L;
+        long[] segments = segments(dir);
+        this.segment = segments.length == 0 ? 1 : segments[segments.length - 1] + 1;
+        this.open();
+
+        this.writer = new Thread(this, "mud-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private void open() throws IOException {
+        File file = new File(this.dir, SEGMENT + this.segment + ".log");
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // called by the workers of the instances, so it only queues the record
+    public void append(byte type, String mud, long number, String... args) {
+        this.pending.offer(new Record(type, mud, number, args));
+        this.appended.increment();
+    }
+
+    public void run() {
+        while(!this.closed) {
+            LockSupport.parkNanos(this.commitNanos);
+            try {
+                this.flush();
+            } catch(IOException e) {
+                System.err.println("Error, cannot write the journal: " + e.getMessage());
+            }
+        }
+    }
+
+    // write and sync every record queued so far (one group commit)
+    private synchronized void flush() throws IOException {
+        if(!this.channel.isOpen()) {    // closed, whatever comes now is lost as after a crash
+            return;
+        }
+        Record record;
+        int count = 0;
+        while((record = this.pending.poll()) != null) {
+            this.encode(record);
+            count++;
+            if(this.buffer.size() >= 60 * 1024) {
+                this.write();
+            }
+        }
+        if(count == 0) {
+            return;
+        }
+        this.write();
+        this.channel.force(false);
+        this.written += count;
+        this.syncs++;
+    }
+
+    private void encode(Record record) throws IOException {
+        this.scratch.reset();
+        this.fields.writeByte(record.type);
+        this.fields.writeUTF(record.mud);
+        this.fields.writeLong(record.number);
+        this.fields.writeByte(record.args.length);
+        for(String arg : record.args) {
+            this.fields.writeUTF(arg);
+        }
+        this.fields.flush();
+
+        byte[] payload = this.scratch.toByteArray();
+        this.crc.reset();
+        this.crc.update(payload);
+        this.out.writeInt(payload.length);
+        this.out.write(payload);
+        this.out.writeInt((int)this.crc.getValue());
+    }
+
+    private void write() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(this.buffer.toByteArray());
+        this.bytes += data.remaining();
+        while(data.hasRemaining()) {
+            this.channel.write(data);
+        }
+        this.buffer.reset();
+    }
+
+    /**
+     * Close the current segment and start a new one; returns its number.
+     * Everything appended before the call is in the older segments.
+     */
+    public synchronized long roll() throws IOException {
+        this.flush();
+        this.channel.close();
+        this.segment++;
+        this.open();
+        return this.segment;
+    }
+
+    // save the snapshot of an instance; it replaces the previous one only once it is on disk
+    public void snapshot(String mud, byte[] state) throws IOException {
+        File file = new File(this.dir, SNAPSHOT + URLEncoder.encode(mud, StandardCharsets.UTF_8) + ".bin");
+        File temp = new File(this.dir, file.getName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.wrap(state);
+            while(data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // delete the segments before the given one, once the snapshots cover them
+    public void truncate(long before) {
+        for(long n : segments(this.dir)) {
+            if(n < before) {
+                new File(this.dir, SEGMENT + n + ".log").delete();
+            }
+        }
+    }
+
+    // write what is left and close the segment; closing twice is harmless
+    public synchronized void close() {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        if(!this.channel.isOpen()) {
+            return;
+        }
+        try {
+            this.flush();
+            this.channel.force(false);
+            this.channel.close();
+        } catch(IOException e) {
+            System.err.println("Error, cannot write the journal: " + e.getMessage());
+        }
+    }
+
+    public synchronized String stats() {
+        return "journal records " + this.appended.sum() + " (written " + this.written + "), syncs " + this.syncs
+            + ", bytes " + this.bytes + ", segment " + this.segment;
+    }
+
+    // the numbers of the segments in the directory, in order
+    private static long[] segments(File dir) {
+        String[] files = dir.list();
+        if(files == null) {
+            return new long[0];
+        }
+        return Arrays.stream(files)
+            .filter(name -> name.startsWith(SEGMENT) && name.endsWith(".log"))
+            .mapToLong(name -> Long.parseLong(name.substring(SEGMENT.length(), name.length() - 4)))
+            .sorted()
+            .toArray();
+    }
+
+    /**
+     * Rebuild the instances from the snapshots and the journal in dir,
+     * by name, in the order they were first seen.
+     */
+    public static Map<String, MUD> recover(File dir) throws IOException {
+        Map<String, MUD> muds = new LinkedHashMap<>();
+        dir.mkdirs();
+
+        String[] files = dir.list();
+        Arrays.sort(files);
+        for(String name : files) {
+            if(name.startsWith(SNAPSHOT) && name.endsWith(".bin")) {
+                String mud = URLDecoder.decode(name.substring(SNAPSHOT.length(), name.length() - 4), StandardCharsets.UTF_8);
+                try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, name))))) {
+                    muds.put(mud, MUD.restore(in));
+                }
+            }
+        }
+
+        for(long n : segments(dir)) {
+            File file = new File(dir, SEGMENT + n + ".log");
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while(replay(in, muds)) {
+                }
+            } catch(EOFException e) {
+                // the last record was not written completely, the rest of the segment is lost
+            }
+        }
+        return muds;
+    }
+
+    // read one record and apply it; false at the end of the segment or at a damaged record
+    private static boolean replay(DataInputStream in, Map<String, MUD> muds) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch(EOFException e) {
+            return false;
+        }
+        if(length <= 0 || length > 1 << 20) {
+            return false;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        int checksum = in.readInt();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if((int)crc.getValue() != checksum) {
+            return false;
+        }
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = record.readByte();
+        String name = record.readUTF();
+        long number = record.readLong();
+        String[] args = new String[record.readByte()];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = record.readUTF();
+        }
+
+        MUD mud = muds.get(name);
+        if(type == CREATE) {
+            if(mud == null) {
+                muds.put(name, new MUD(WorldTemplate.load(args[1], args[2], args[3]), Integer.parseInt(args[0])));
+            }
+            return true;
+        }
+        if(mud == null || number <= mud.getChangeNumber()) {
+            return true;    // already in the snapshot
+        }
+        switch(type) {
+            case ADD_THING: mud.addThing(args[0], args[1]); break;
+            case DEL_THING: mud.delThing(args[0], args[1]); break;
+            case MOVE_THING: mud.moveThing(args[0], args[1], args[2]); break;
+            case ADD_PLAYER: mud.addPlayer(args[0]); break;
+            case REMOVE_PLAYER: mud.removePlayer(args[0], args[1]); break;
+            default: throw new IOException("Unknown journal record " + type);
+        }
+        mud.setChangeNumber(number);
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations (or sizes) in the style of HdrHistogram:
+ * values are counted in buckets whose width grows with the value, so
+ * any value from 1 to Long.MAX_VALUE is kept with about 3% precision in
+ * a fixed number of buckets. Recording is lock free and never allocates.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;  // 32 buckets for every power of two
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucket(long value) {
+        if(value < SUB) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB - 1);
+        return (exponent - SUB_BITS + 1) * SUB + sub;
+    }
+
+    // the highest value which falls in a bucket
+    private static long highest(int bucket) {
+        if(bucket < SUB) {
+            return bucket;
+        }
+        int exponent = bucket / SUB + SUB_BITS - 1;
+        long sub = bucket % SUB;
+        long low = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(bucket(value));
+        this.total.increment();
+        this.sum.add(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return this.total.sum();
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    public long mean() {
+        long count = this.count();
+        return count == 0 ? 0 : this.sum.sum() / count;
+    }
+
+    // the value below which the given fraction (e.g. 0.99) of the values fall
+    public long percentile(double fraction) {
+        long count = this.count();
+        if(count == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long)Math.ceil(fraction * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if(seen >= wanted) {
+                return Math.min(highest(i), this.max());
+            }
+        }
+        return this.max();
+    }
+
+    // a one line summary of durations recorded in nanoseconds
+    public String summary() {
+        return "count " + this.count()
+            + ", p50 " + this.percentile(0.5) / 1000 + "us"
+            + ", p99 " + this.percentile(0.99) / 1000 + "us"
+            + ", p999 " + this.percentile(0.999) / 1000 + "us"
+            + ", max " + this.max() / 1000 + "us";
+    }
+}
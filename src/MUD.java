@@ -3,21 +3,27 @@
  * cs3524.solutions.mud.MUD
  ***********************************************************************/
 
-import java.io.FileReader;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.StringTokenizer;
-
-import java.util.Iterator;
+import java.io.UncheckedIOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class that can be used to represent a MUD; essenially, this is a
- * graph.
+ * graph. The graph itself (locations, routes, messages) comes from a
+ * WorldTemplate shared by every instance made from the same files.
+ * An instance only keeps the things of the locations it has changed:
+ * the first time something is added to or removed from a location,
+ * the template's things for it are copied and changed from then on.
  */
 
 public class MUD
@@ -26,165 +32,66 @@ public class MUD
      * Private stuff
      */
 
-    // A record of all the vertices in the MUD graph. HashMaps are not
-    // synchronized, but we don't really need this to be synchronised.
-    private Map<String,Vertex> vertexMap = new HashMap<String,Vertex>();
+    // The shared, never changing part of the MUD.
+    private final WorldTemplate template;
 
-    private ArrayList<String> players = new ArrayList<>();  // a list of connected clients to current mud
-    private Integer maxPlayers; // number of maximum allowed clients
+    // The things at each location (by vertex id) this instance has
+    // changed. Locations which are null here still have the things of
+    // the template. Nothing is synchronized, the instance is only used
+    // by one thread at a time.
+    private Room[] rooms;
 
-    private String _startLocation = "";
+    // the players of the instance; a hashed set so that joining, the
+    // capacity check and telling players from items cost the same
+    // with 5 players or 5,000
+    private Set<String> players = ConcurrentHashMap.newKeySet();
+    private Integer maxPlayers; // number of maximum allowed clients
 
-    /**
-     * Add a new edge to the graph.
-     */
-    private void addEdge( String sourceName, 
-			  String destName, 
-			  String direction, 
-			  String view )
-    {
-        Vertex v = getOrCreateVertex( sourceName );
-        Vertex w = getOrCreateVertex( destName );
-        v._routes.put( direction, new Edge( w, view ) );
-    }
+    // which players see each location, so that a change is only told
+    // to the players near it
+    private final InterestIndex interest;
 
-    /**
-     * Create a new thing at a location.
-     */
-    private void createThing( String loc, 
-			      String thing )
-    {
-	Vertex v = getOrCreateVertex( loc );
-	v._things.add( thing );
-    }
+    // every change is written to the journal (when there is one) with
+    // its number, so that a restart can bring the instance back
+    private Journal journal;
+    private String name;
+    private long changes = 0;
 
-    /**
-     * Change the message associated with a location.
-     */
-    private void changeMessage( String loc, String msg )
-    {
-	Vertex v = getOrCreateVertex( loc );
-	v._msg = msg;
-    }
+    // where the players were when the server stopped; they are put back
+    // there if they join the instance again
+    private Map<String,String> resume = new HashMap<String,String>();
 
     /**
-     * If vertexName is not present, add it to vertexMap.  In either
-     * case, return the Vertex. Used only for creating the MUD.
+     * The id of a location; the rest of the public methods take names
+     * and turn them into ids here.
      */
-    private Vertex getOrCreateVertex( String vertexName )
+    private int getVertex( String vertexName )
     {
-        Vertex v = vertexMap.get( vertexName );
-        if (v == null) {
-            v = new Vertex( vertexName );
-            vertexMap.put( vertexName, v );
-        }
-        return v;
+	return template.id( vertexName );
     }
 
     /**
-     *
+     * The things at a location that is about to be changed. Copies the
+     * template's things the first time the location is changed.
      */
-    private Vertex getVertex( String vertexName )
+    private Room changeThingsAt( int v )
     {
-	return vertexMap.get( vertexName );
-    }
-
-    /**
-     * Creates the edges of the graph on the basis of a file with the
-     * following fromat:
-     * source direction destination message
-     */
-    private void createEdges( String edgesfile )
-    {
-	try {
-	    FileReader fin = new FileReader( edgesfile );
-            BufferedReader edges = new BufferedReader( fin );
-            String line;
-            while((line = edges.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer( line );
-		if( st.countTokens( ) < 3 ) {
-		    System.err.println( "Skipping ill-formatted line " + line );
-		    continue;
-		}
-		String source = st.nextToken();
-		String dir    = st.nextToken();
-		String dest   = st.nextToken();
-		String msg = "";
-		while (st.hasMoreTokens()) {
-		    msg = msg + st.nextToken() + " "; 
-                }
-		addEdge( source, dest, dir, msg );
-	    }
-	}
-	catch( IOException e ) {
-	    System.err.println( "Graph.createEdges( String " + 
-				edgesfile + ")\n" + e.getMessage() );
+	Room room = rooms[v];
+	if (room == null) {
+	    room = new Room( template.things( v ) );
+	    rooms[v] = room;
 	}
+	return room;
     }
 
     /**
-     * Records the messages assocated with vertices in the graph on
-     * the basis of a file with the following format:
-     * location message
-     * The first location is assumed to be the starting point for
-     * users joining the MUD.
+     * The description of a location, built again only when its things
+     * have changed since the last time.
      */
-    private void recordMessages( String messagesfile ) {
-        try {
-            FileReader fin = new FileReader( messagesfile );
-                BufferedReader messages = new BufferedReader( fin );
-                String line;
-            boolean first = true; // For recording the start location.
-                while((line = messages.readLine()) != null) {
-                    StringTokenizer st = new StringTokenizer( line );
-            if( st.countTokens( ) < 2 ) {
-                System.err.println( "Skipping ill-formatted line " + line );
-                continue;
-            }
-            String loc = st.nextToken();
-            String msg = "";
-            while (st.hasMoreTokens()) {
-                msg = msg + st.nextToken() + " "; 
-                    }
-            changeMessage( loc, msg );
-            if (first) {      // Record the start location.
-                _startLocation = loc;
-                first = false;
-            }
-            }
-        } catch( IOException e ) {
-            System.err.println( "Graph.recordMessages( String " + 
-                    messagesfile + ")\n" + e.getMessage() );
-        }
-    }
-
-    /**
-     * Records the things assocated with vertices in the graph on
-     * the basis of a file with the following format:
-     * location thing1 thing2 ...
-     */
-    private void recordThings( String thingsfile )
+    private String describe( int v )
     {
-	try {
-	    FileReader fin = new FileReader( thingsfile );
-            BufferedReader things = new BufferedReader( fin );
-            String line;
-            while((line = things.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer( line );
-		if( st.countTokens( ) < 2 ) {
-		    System.err.println( "Skipping ill-formatted line " + line );
-		    continue;
-		}
-		String loc = st.nextToken();
-		while (st.hasMoreTokens()) {
-		    addThing( loc, st.nextToken()); 
-                }
-	    }
-	}
-	catch( IOException e ) {
-	    System.err.println( "Graph.recordThings( String " + 
-				thingsfile + ")\n" + e.getMessage() );
-	}
+	Room room = rooms[v];
+	return room == null ? template.describe( v ) : room.describe( template, v );
     }
 
     /**
@@ -195,17 +102,23 @@ public class MUD
      */
 
     /**
-     * A constructor that creates the MUD.
+     * A constructor that creates the MUD. The files are only read the
+     * first time an instance is made from them.
      */
     public MUD( String edgesfile, String messagesfile, String thingsfile, Integer playerLimit )
     {
-	createEdges( edgesfile );
-	recordMessages( messagesfile );
-    recordThings( thingsfile );
-    this.maxPlayers = playerLimit;  // Set the number of maximum allowed connected clients
+	this( WorldTemplate.load( edgesfile, messagesfile, thingsfile ), playerLimit );
+    }
 
-	System.out.println( "Files read..." );
-	System.out.println( vertexMap.size( ) + " vertices\n" );
+    /**
+     * A constructor that creates a new instance of an already loaded MUD.
+     */
+    public MUD( WorldTemplate template, Integer playerLimit )
+    {
+	this.template = template;
+	this.rooms = new Room[template.size()];
+	this.interest = new InterestIndex( template );
+	this.maxPlayers = playerLimit;  // Set the number of maximum allowed connected clients
     }
 
     // This method enables us to display the entire MUD (mostly used
@@ -213,17 +126,14 @@ public class MUD
     // defined has been successfully parsed.
     public String toString()
     {
-	String summary = "";
-	Iterator iter = vertexMap.keySet().iterator();
-	String loc;
-	while (iter.hasNext()) {
-	    loc = (String)iter.next();
-	    summary = summary + "Node: " + loc;
-	    summary += ((Vertex)vertexMap.get( loc )).toString();
+	StringBuilder summary = new StringBuilder();
+	for (int v = 0; v < template.size(); v++) {
+	    summary.append( "Node: " ).append( template.name( v ) );
+	    summary.append( describe( v ) );
 	}
-    summary += "Start location = " + _startLocation;
-    summary += "\nMaximum number of players: " + maxPlayers;
-	return summary;
+	summary.append( "Start location = " ).append( template.startLocation() );
+	summary.append( "\nMaximum number of players: " ).append( maxPlayers );
+	return summary.toString();
     }
 
     /**
@@ -231,7 +141,31 @@ public class MUD
      */
     public String locationInfo( String loc )
     {
-	return getVertex( loc ).toString();
+	return describe( getVertex( loc ) );
+    }
+
+    /**
+     * The version of the things at a location, which changes whenever
+     * they do (0 while they are still the template's), and the two parts
+     * of its description: the header never changes, the contents are the
+     * things. Used to only send a client what it has not seen yet.
+     */
+    public int version( String loc )
+    {
+	int v = getVertex( loc );
+	return v < 0 || rooms[v] == null ? 0 : rooms[v].version();
+    }
+
+    public String header( String loc )
+    {
+	return template.header( getVertex( loc ) );
+    }
+
+    public String contents( String loc )
+    {
+	int v = getVertex( loc );
+	Room room = rooms[v];
+	return room == null ? WorldTemplate.contents( template.things( v ) ) : room.contents();
     }
 
     /**
@@ -239,7 +173,7 @@ public class MUD
      */
     public String startLocation()
     {
-	return _startLocation;
+	return template.startLocation();
     }
 
     /**
@@ -248,8 +182,14 @@ public class MUD
     public void addThing( String loc,
 			  String thing )
     {
-	Vertex v = getVertex( loc );
-	v._things.add( thing );
+	int v = getVertex( loc );
+	Room room = changeThingsAt( v );
+	if (players.contains( thing )) {
+	    room.addPlayer( thing );
+	    interest.enter( thing, v );
+	} else
+	    room.addItem( thing );
+	log( Journal.ADD_THING, loc, thing );
     }
 
     /**
@@ -258,68 +198,268 @@ public class MUD
     public void delThing( String loc, 
 			  String thing )
     {
-	Vertex v = getVertex( loc );
-	v._things.remove( thing );
+	int v = getVertex( loc );
+	Room room = changeThingsAt( v );
+	if (room.removePlayer( thing ))
+	    interest.leave( thing, v );
+	else
+	    room.removeItem( thing );
+	log( Journal.DEL_THING, loc, thing );
     }
 
     // check if an item exists in a location (used only for items)
+    // players are kept apart from items, so a player never counts
     public boolean existsThing(String loc, String thing) {
-        Vertex v = getVertex(loc);
-        List<String> things = v._things;
-
-        // make sure the thing we're looking for is not a player but an item
-        // player look up is done in a different method
-        if(!this.players.contains(thing)) {
-            return things.contains(thing);
+        int v = getVertex(loc);
+        Room room = this.rooms[v];
+        if(room == null) {  // nothing changed yet, only the few items of the template are there
+            return this.template.things(v).contains(thing);
         }
-
-        return false;
+        return room.hasItem(thing);
     }
 
     /**
      * A method to enable a player to move through the MUD (a player
      * is a thing). Checks that there is a route to travel on. Returns
-     * the location moved to.
+     * the location moved to. Works on ids only, so apart from the
+     * first change of a location nothing is allocated.
      */
     public String moveThing( String loc, String dir, String thing )
     {
-	Vertex v = getVertex( loc );
-	Edge e = v._routes.get( dir );
-	if (e == null)   // if there is no route in that direction
+	int v = getVertex( loc );
+	Direction d = Direction.parse( dir );
+	int dest = d == null ? -1 : template.route( v, d );
+	if (dest < 0)    // if there is no route in that direction
 	    return loc;  // no move is made; return current location.
-	v._things.remove( thing );
-	e._dest._things.add( thing );
-	return e._dest._name;
+	Room from = changeThingsAt( v );
+	Room to = changeThingsAt( dest );
+	if (from.removePlayer( thing )) {
+	    to.addPlayer( thing );
+	    interest.move( thing, v, dest );
+	} else if (from.removeItem( thing )) {
+	    to.addItem( thing );
+	}
+	log( Journal.MOVE_THING, loc, dir, thing );
+	return template.name( dest );
+    }
+
+    /**
+     * Walk a thing along the shortest way to a location, one move at a
+     * time (so the rooms, the interest index and the journal see every
+     * step). Returns the target, or null if there is no such location
+     * or no way to it.
+     */
+    public String walkThing( String loc, String target, String thing )
+    {
+	byte[] way = template.router().way( getVertex( loc ), getVertex( target ) );
+	if (way == null)
+	    return null;
+	for (byte d : way) {
+	    loc = moveThing( loc, Direction.of( d ).word(), thing );
+	}
+	return loc;
     }
 
     // add a player to a list containing all players on the instance
+    // (only the worker of the instance adds players, so the size cannot change in between)
     public boolean addPlayer(String name) {
-        if(!this.players.contains(name)) {
-            if(this.players.size() < this.maxPlayers) {
-                this.players.add(name);
-                return true;
-            } else {
-                return false;
-            }
-        } else {
+        if(this.players.size() >= this.maxPlayers || !this.players.add(name)) {
             return false;
         }
+        this.log(Journal.ADD_PLAYER, name);
+        return true;
+    }
+
+    public boolean hasPlayer(String name) {
+        return this.players.contains(name);
     }
 
     // remove a player from the list of current players on instance (and from the world)
-    public void removePlayer(ClientImpl client) {
-        this.players.remove(client.getUsername());
-        this.delThing(client.getUserLocation(), client.getUsername());
+    public void removePlayer(String name, String loc) {
+        this.players.remove(name);
+        this.resume.remove(name);
+        int v = getVertex(loc);
+        if(v >= 0 && changeThingsAt(v).removePlayer(name)) {    // the player may not have been placed yet
+            this.interest.leave(name, v);
+        }
+        this.log(Journal.REMOVE_PLAYER, name, loc);
+    }
+
+    /**
+     * Where a player joining the instance is put: where it was when the
+     * server stopped, if it was in the instance then, or else the start.
+     */
+    public String entryLocation( String name )
+    {
+	String loc = resume.remove( name );
+	return loc == null ? startLocation() : loc;
+    }
+
+    // the players who see what happens at a location (there or next to it),
+    // read only; can be read from any thread
+    public Set<String> watchers(String loc) {
+        int v = getVertex(loc);
+        return v < 0 ? Collections.<String>emptySet() : this.interest.watchers(v);
     }
 
-    public ArrayList<String> getPlayers() {
-        return this.players;
+    // read only; can be read from any thread
+    public Set<String> getPlayers() {
+        return Collections.unmodifiableSet(this.players);
     }
 
     public Integer getMaxPlayers() {
         return this.maxPlayers;
     }
 
+    /**
+     * Write every change from now on to the journal under the given
+     * name, starting with the creation of the instance itself.
+     */
+    public void setJournal( Journal journal, String name )
+    {
+	this.journal = journal;
+	this.name = name;
+	if (changes == 0)
+	    journal.append( Journal.CREATE, name, 0, String.valueOf( maxPlayers ),
+			    template.edgesFile(), template.messagesFile(), template.thingsFile() );
+    }
+
+    // one per number of arguments, so that without a journal a change
+    // does not even build the array of arguments
+    private void log( byte type, String a )
+    {
+	if (journal != null)
+	    journal.append( type, name, ++changes, a );
+    }
+
+    private void log( byte type, String a, String b )
+    {
+	if (journal != null)
+	    journal.append( type, name, ++changes, a, b );
+    }
+
+    private void log( byte type, String a, String b, String c )
+    {
+	if (journal != null)
+	    journal.append( type, name, ++changes, a, b, c );
+    }
+
+    // the number of the last change made, the journal skips older ones when replaying
+    public long getChangeNumber()
+    {
+	return changes;
+    }
+
+    public void setChangeNumber( long number )
+    {
+	changes = number;
+    }
+
+    /**
+     * After a restart nobody is connected any more: take the players
+     * out and remember where they were, for when they join again.
+     */
+    public void evictPlayers()
+    {
+	for (int v = 0; v < rooms.length; v++) {
+	    if (rooms[v] == null)
+		continue;
+	    for (String player : new ArrayList<String>( rooms[v].players() )) {
+		resume.put( player, template.name( v ) );
+		rooms[v].removePlayer( player );
+	    }
+	}
+	players.clear();
+	interest.clear();
+    }
+
+    /**
+     * The whole state of the instance, with the number of the last change
+     * it includes. Only the locations which have been changed are saved.
+     */
+    public byte[] snapshot()
+    {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	try (DataOutputStream out = new DataOutputStream( bytes )) {
+	    out.writeUTF( template.edgesFile() );
+	    out.writeUTF( template.messagesFile() );
+	    out.writeUTF( template.thingsFile() );
+	    out.writeInt( maxPlayers );
+	    out.writeLong( changes );
+	    writeStrings( out, players );
+	    out.writeInt( resume.size() );
+	    for (Map.Entry<String,String> r : resume.entrySet()) {
+		out.writeUTF( r.getKey() );
+		out.writeUTF( r.getValue() );
+	    }
+	    int changed = 0;
+	    for (Room room : rooms) {
+		if (room != null)
+		    changed++;
+	    }
+	    out.writeInt( changed );
+	    for (int v = 0; v < rooms.length; v++) {
+		if (rooms[v] == null)
+		    continue;
+		out.writeUTF( template.name( v ) );
+		Map<String,Integer> items = rooms[v].items();
+		out.writeInt( items.size() );
+		for (Map.Entry<String,Integer> item : items.entrySet()) {
+		    out.writeUTF( item.getKey() );
+		    out.writeInt( item.getValue() );
+		}
+		writeStrings( out, rooms[v].players() );
+	    }
+	} catch( IOException e ) {
+	    throw new UncheckedIOException( e );    // cannot happen in memory
+	}
+	return bytes.toByteArray();
+    }
+
+    private static void writeStrings( DataOutputStream out, Collection<String> strings ) throws IOException
+    {
+	List<String> copy = new ArrayList<String>( strings );
+	out.writeInt( copy.size() );
+	for (String s : copy) {
+	    out.writeUTF( s );
+	}
+    }
+
+    /**
+     * Read an instance saved by snapshot().
+     */
+    public static MUD restore( DataInputStream in ) throws IOException
+    {
+	WorldTemplate template = WorldTemplate.load( in.readUTF(), in.readUTF(), in.readUTF() );
+	MUD mud = new MUD( template, in.readInt() );
+	mud.changes = in.readLong();
+	for (int i = in.readInt(); i > 0; i--) {
+	    mud.players.add( in.readUTF() );
+	}
+	for (int i = in.readInt(); i > 0; i--) {
+	    mud.resume.put( in.readUTF(), in.readUTF() );
+	}
+	for (int i = in.readInt(); i > 0; i--) {
+	    int v = template.id( in.readUTF() );
+	    Room room = new Room( Collections.<String>emptyList() );
+	    for (int j = in.readInt(); j > 0; j--) {
+		String item = in.readUTF();
+		for (int n = in.readInt(); n > 0; n--) {
+		    room.addItem( item );
+		}
+	    }
+	    for (int j = in.readInt(); j > 0; j--) {
+		String player = in.readUTF();
+		room.addPlayer( player );
+		if (v >= 0)
+		    mud.interest.enter( player, v );
+	    }
+	    if (v >= 0)
+		mud.rooms[v] = room;
+	}
+	return mud;
+    }
+
     /**
      * A main method that can be used to testing purposes to ensure
      * that the MUD is specified correctly.
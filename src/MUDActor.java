@@ -0,0 +1,388 @@
+import java.rmi.RemoteException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Owns a single MUD instance. RMI threads never touch the MUD directly,
+ * they put a command in the bounded mailbox of the instance and wait for
+ * the result. The mailbox is drained by one worker at a time (taken from a
+ * pool shared by all instances), so the MUD and the Vertex structures
+ * inside it are only ever used by a single thread and need no locks.
+ *
+ * In tick mode (tickMillis above 0) the mailbox is not drained as commands
+ * arrive but once per tick: everything that came in during the tick runs
+ * in one go, in the order it arrived, and the events the commands caused
+ * are sent together at the start of the next tick, so each player gets
+ * one batch per tick. The cost of an instance per tick is then bounded
+ * and predictable, at the price of up to a tick of extra latency.
+ */
+class MUDActor implements Runnable, MUDActorMBean {
+    private static final int MAILBOX_SIZE = 256;    // callers block when this many commands are waiting
+    private static final int BATCH = 32;    // commands run before the worker is handed back to the pool
+
+    // only starts the ticks, which then run on the workers like everything else
+    private static final ScheduledExecutorService CLOCK = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread clock = new Thread(runnable, "mud-tick");
+        clock.setDaemon(true);
+        return clock;
+    });
+
+    private final String name;
+    private final MUD mud;
+    private final Executor workers;
+    private final BlockingQueue<Task<?>> mailbox = new ArrayBlockingQueue<>(MAILBOX_SIZE);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);  // true while a worker owns the mailbox
+    private final EventDispatcher events;
+    private final Map<String, ClientInterface> listeners = new ConcurrentHashMap<>();   // player -> callback
+    private final AdmissionQueue<String, Session> waiting = new AdmissionQueue<>();  // players waiting for a spot
+
+    // metrics about the instance; the wait in the mailbox is what replaced
+    // waiting for the lock of the MUD, so it is the contention of the instance
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final LatencyHistogram wait = new LatencyHistogram();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final LongAdder published = new LongAdder();   // events
+    private final LongAdder recipients = new LongAdder();  // players they were sent to
+
+    // tick mode, off while tickMillis is 0
+    private volatile long tickMillis = 0;
+    private ScheduledFuture<?> ticker;
+    private final Queue<Pending> outbox = new ConcurrentLinkedQueue<>();  // events of the last tick
+    private final LatencyHistogram tickTime = new LatencyHistogram();
+    private final LongAdder overruns = new LongAdder();   // ticks which took longer than a tick, or were skipped
+    private final AtomicLong maxTickCommands = new AtomicLong();
+
+    // hibernation: when the instance was last asked to do something, and
+    // whether it has been saved to disk, after which it refuses commands
+    private volatile long lastUsed = System.nanoTime();
+    private volatile boolean retired = false;
+
+    // the instance went to disk while the command was waiting; the caller
+    // should find the instance again, which brings it back in memory
+    static class RetiredException extends RemoteException {
+        private static final long serialVersionUID = 1L;
+
+        RetiredException(String name) {
+            super("Dungeon [" + name + "] is hibernating");
+        }
+    }
+
+    // an event waiting for the end of the tick
+    private static class Pending {
+        final Event event;
+        final String[] also;
+
+        Pending(Event event, String[] also) {
+            this.event = event;
+            this.also = also;
+        }
+    }
+
+    // a command together with the time it was put in the mailbox
+    private class Task<T> extends FutureTask<T> {
+        private final long queued = System.nanoTime();
+
+        Task(Function<MUD, T> work) {
+            super(() -> work.apply(mud));
+        }
+
+        @Override
+        public void run() {
+            if(retired) {
+                this.setException(new RetiredException(name));
+                return;
+            }
+            long start = System.nanoTime();
+            super.run();
+            long end = System.nanoTime();
+
+            wait.record(start - queued);
+            service.record(end - start);
+        }
+    }
+
+    MUDActor(String name, MUD mud, Executor workers, EventDispatcher events) {
+        this.name = name;
+        this.mud = mud;
+        this.workers = workers;
+        this.events = events;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Run a piece of work on the instance and wait for its result.
+     * Must never be called from inside another command of the same
+     * instance (it would wait for itself).
+     */
+    public <T> T call(Function<MUD, T> work) throws RemoteException {
+        Task<T> task = new Task<>(work);
+        this.lastUsed = System.nanoTime();
+        try {
+            this.mailbox.put(task);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for dungeon [" + this.name + "]");
+        }
+        this.maxQueueDepth.accumulateAndGet(this.mailbox.size(), Math::max);
+        if(this.tickMillis == 0) {
+            this.schedule();
+        }
+
+        try {
+            return task.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for dungeon [" + this.name + "]");
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof RetiredException) {
+                throw (RetiredException)e.getCause();
+            }
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RemoteException("Command failed in dungeon [" + this.name + "]", e.getCause());
+        }
+    }
+
+    // hand the mailbox to a worker unless one already owns it
+    private void schedule() {
+        if(this.scheduled.compareAndSet(false, true)) {
+            this.workers.execute(this);
+        }
+    }
+
+    // drain a batch of commands, then give the worker back so that
+    // a busy instance cannot starve the others sharing the pool
+    public void run() {
+        if(this.tickMillis == 0) {
+            this.flush();   // what was left over from tick mode goes first
+        }
+        for(int i = 0; i < BATCH; i++) {
+            Task<?> task = this.mailbox.poll();
+            if(task == null) {
+                break;
+            }
+            task.run();
+        }
+        this.scheduled.set(false);
+        // a command (or an event) may have arrived after the last poll
+        if(!this.mailbox.isEmpty() || (this.tickMillis == 0 && !this.outbox.isEmpty())) {
+            this.schedule();
+        }
+    }
+
+    // run every command which arrived since the last tick, after sending
+    // the events of the last one; a tick still running when the next one
+    // is due makes the next one skip
+    private void tick() {
+        long period = this.tickMillis;
+        if(period == 0) {   // cancelled while it was due
+            return;
+        }
+        if(!this.scheduled.compareAndSet(false, true)) {
+            this.overruns.increment();
+            return;
+        }
+        this.workers.execute(() -> {
+            long start = System.nanoTime();
+            this.flush();
+            int commands = this.mailbox.size();
+            for(int i = 0; i < commands; i++) {
+                this.mailbox.poll().run();
+            }
+            this.scheduled.set(false);
+            // ticks were turned off meanwhile, and could not hand the mailbox to a worker while this one had it
+            if(this.tickMillis == 0 && (!this.mailbox.isEmpty() || !this.outbox.isEmpty())) {
+                this.schedule();
+            }
+            long time = System.nanoTime() - start;
+            this.tickTime.record(time);
+            this.maxTickCommands.accumulateAndGet(commands, Math::max);
+            if(time > TimeUnit.MILLISECONDS.toNanos(period)) {
+                this.overruns.increment();
+            }
+        });
+    }
+
+    // send the events waiting for the end of the tick
+    private void flush() {
+        Pending pending;
+        while((pending = this.outbox.poll()) != null) {
+            this.deliver(pending.event, pending.also);
+        }
+    }
+
+    public long getTickMillis() {
+        return this.tickMillis;
+    }
+
+    // 0 runs commands as they come, anything else runs them once per tick of that many ms
+    public synchronized void setTickMillis(long tickMillis) {
+        if(this.ticker != null) {
+            this.ticker.cancel(false);
+            this.ticker = null;
+        }
+        this.tickMillis = Math.max(0, tickMillis);
+        if(this.tickMillis > 0) {
+            this.ticker = CLOCK.scheduleAtFixedRate(this::tick, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+        } else {
+            // whatever was waiting for a tick goes now, from a worker so it is
+            // not sent at the same time as the events of a tick still running
+            this.schedule();
+        }
+    }
+
+    public long getTicks() {
+        return this.tickTime.count();
+    }
+
+    public long getOverruns() {
+        return this.overruns.sum();
+    }
+
+    public long getTickP99Micros() {
+        return this.tickTime.percentile(0.99) / 1000;
+    }
+
+    // nanoseconds since a command was last given to the instance
+    public long idleNanos() {
+        return System.nanoTime() - this.lastUsed;
+    }
+
+    // only called from a command of the instance, so the commands after it refuse to run
+    public void retire() {
+        this.retired = true;
+    }
+
+    // the instance could not be saved after all
+    public void revive() {
+        this.retired = false;
+    }
+
+    public boolean isRetired() {
+        return this.retired;
+    }
+
+    public AdmissionQueue<String, Session> getQueue() {
+        return this.waiting;
+    }
+
+    // players without a callback (null) simply get no events
+    public void addListener(String player, ClientInterface listener) {
+        if(listener != null) {
+            this.listeners.put(player, listener);
+        }
+    }
+
+    public void removeListener(String player) {
+        this.listeners.remove(player);
+    }
+
+    // send an event to the players who can see where it happened (and the
+    // other locations given, e.g. where a player came from), except the one
+    // who caused it. An event without a location goes to every player.
+    public void publish(Event event, String... also) {
+        this.published.increment();
+        if(this.tickMillis > 0) {
+            this.outbox.offer(new Pending(event, also));
+        } else if(!this.outbox.isEmpty()) {
+            // events of the last tick are still waiting, this one goes after them
+            this.outbox.offer(new Pending(event, also));
+            this.schedule();
+        } else {
+            this.deliver(event, also);
+        }
+    }
+
+    private void deliver(Event event, String[] also) {
+        if(event.getLocation().isEmpty()) {
+            for(Map.Entry<String, ClientInterface> listener : this.listeners.entrySet()) {
+                this.send(listener.getKey(), listener.getValue(), event);
+            }
+            return;
+        }
+        Set<String> players = this.mud.watchers(event.getLocation());
+        if(also.length > 0) {
+            players = new HashSet<>(players);
+            for(String location : also) {
+                players.addAll(this.mud.watchers(location));
+            }
+        }
+        for(String player : players) {
+            this.send(player, this.listeners.get(player), event);
+        }
+    }
+
+    private void send(String player, ClientInterface listener, Event event) {
+        if(listener != null && !player.equals(event.getPlayer())) {
+            this.events.publish(listener, event);
+            this.recipients.increment();
+        }
+    }
+
+    // the set of players is concurrent, so it can be counted from any thread
+    public int playerCount() {
+        return this.mud.getPlayers().size();
+    }
+
+    public Integer getMaxPlayers() {
+        return this.mud.getMaxPlayers();
+    }
+
+    public int getQueueDepth() {
+        return this.mailbox.size();
+    }
+
+    public long getCommands() {
+        return this.service.count();
+    }
+
+    public long getServiceP50Micros() {
+        return this.service.percentile(0.5) / 1000;
+    }
+
+    public long getServiceP99Micros() {
+        return this.service.percentile(0.99) / 1000;
+    }
+
+    public long getWaitP50Micros() {
+        return this.wait.percentile(0.5) / 1000;
+    }
+
+    public long getWaitP99Micros() {
+        return this.wait.percentile(0.99) / 1000;
+    }
+
+    public int getPlayers() {
+        return this.playerCount();
+    }
+
+    public String stats() {
+        return this.name + ": queue depth " + this.mailbox.size() + " (max " + this.maxQueueDepth.get() + ")"
+            + "\n\t\t\tservice " + this.service.summary()
+            + "\n\t\t\twait " + this.wait.summary()
+            + "\n\t\t\tevents " + this.published.sum() + ", sent to " + this.recipients.sum() + " players"
+            + (this.tickMillis == 0 ? "" : "\n\t\t\ttick " + this.tickMillis + "ms, " + this.overruns.sum() + " overruns, max "
+                + this.maxTickCommands.get() + " commands, " + this.tickTime.summary());
+    }
+}
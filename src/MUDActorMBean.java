@@ -0,0 +1,20 @@
+/**
+ * What JMX shows about one dungeon instance. Times are in microseconds;
+ * the wait is the time a command spent in the mailbox before it ran,
+ * which is what the instance's players wait for "the lock".
+ * The tick can be changed here for each instance while the server runs.
+ */
+public interface MUDActorMBean {
+    int getQueueDepth();
+    long getCommands();
+    long getServiceP50Micros();
+    long getServiceP99Micros();
+    long getWaitP50Micros();
+    long getWaitP99Micros();
+    int getPlayers();
+    long getTickMillis();
+    void setTickMillis(long tickMillis);
+    long getTicks();
+    long getOverruns();
+    long getTickP99Micros();
+}
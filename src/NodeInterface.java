@@ -0,0 +1,23 @@
+import java.rmi.RemoteException;
+
+/**
+ * What the server processes (nodes) sharing a registry call on each
+ * other. Every node owns some of the dungeon instances; the registry
+ * tells which one (see Directory). A player always talks to the node
+ * it logged in to, which passes the calls about a dungeon of another
+ * node on to the owner, using a visitor session the owner gave it.
+ * The owner then runs them like the calls of its own players.
+ */
+public interface NodeInterface extends ServerInterface {
+    String getNodeName() throws RemoteException;
+
+    // a session for a player of the given node, which is not counted on this one;
+    // it ends when that node stops answering
+    long attach(String username, ClientInterface listener, NodeInterface home) throws RemoteException;
+
+    // create a dungeon here for a player of another node (which had no spot for it)
+    Result createLocalDungeon(String name, int num, String creator) throws RemoteException;
+
+    // the dungeons of this node only, in the format of listCurrentMUDs
+    String listLocalMUDs() throws RemoteException;
+}
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The names and the spots of the players on the server, without a lock.
+ * A name is taken with a single putIfAbsent, so two players can never
+ * get the same one however many log in at once, and it stays taken
+ * while its player is waiting in the queue. Spots are counted apart
+ * with a compare-and-set loop which never lets the count go above the
+ * capacity, so "is there room" and "take the room" are one step.
+ */
+class PlayerRegistry {
+    private static final long WAITING = 0;  // the session of a name whose player is not in yet
+
+    private final Map<String, Long> names = new ConcurrentHashMap<>();  // name -> session id
+    private final AtomicInteger online = new AtomicInteger();
+    private final int capacity;
+
+    PlayerRegistry(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // take the name; false if a player online or waiting already has it
+    public boolean claim(String name) {
+        return this.names.putIfAbsent(name, WAITING) == null;
+    }
+
+    // take a spot on the server; false if the server is full
+    public boolean reserve() {
+        int n;
+        do {
+            n = this.online.get();
+            if(n >= this.capacity) {
+                return false;
+            }
+        } while(!this.online.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    // the player holding the name (and a reserved spot) is now in with this session
+    public void admit(String name, long session) {
+        this.names.put(name, session);
+    }
+
+    // give the name back, and the spot if the player was in
+    public void release(String name) {
+        Long session = this.names.remove(name);
+        if(session != null && session != WAITING) {
+            this.online.decrementAndGet();
+        }
+    }
+
+    // a spot reserved for a player who did not take it after all
+    public void unreserve() {
+        this.online.decrementAndGet();
+    }
+
+    public boolean isTaken(String name) {
+        return this.names.containsKey(name);
+    }
+
+    public boolean isFull() {
+        return this.online.get() >= this.capacity;
+    }
+
+    public int online() {
+        return this.online.get();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    // the players who are in, in no particular order
+    public List<String> players() {
+        List<String> players = new ArrayList<>();
+        for(Map.Entry<String, Long> name : this.names.entrySet()) {
+            if(name.getValue() != WAITING) {
+                players.add(name.getKey());
+            }
+        }
+        return players;
+    }
+}
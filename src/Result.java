@@ -0,0 +1,94 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The outcome of one Command of a batch. Depending on the command the
+ * answer is a text (a location or its description), a number (the session
+ * id after LOG_IN) or a list (the inventory).
+ * A LOOK which gives the versions the client has seen of some locations
+ * answers, for the location the player is at, NOT_MODIFIED if it has not
+ * changed since; otherwise the answer has the
+ * location as text, the version of its things as number and as list
+ * either [contents] if the client has the rest already or [header, contents].
+ */
+public class Result implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Status {
+        OK,
+        NOT_MODIFIED,       // a LOOK for which the client already has everything (counts as OK)
+        SKIPPED,            // not run because an earlier command of the batch failed
+        INVALID,            // unknown command or the player is not in a dungeon
+        NAME_TAKEN,
+        SERVER_FULL,
+        DUNGEON_EXISTS,
+        NO_SUCH_DUNGEON,
+        NO_SPOT_FOR_DUNGEON,
+        DUNGEON_FULL,
+        NO_SUCH_ITEM,
+        NO_WAY,             // no such location, or no way to get there
+        IS_PLAYER
+    }
+
+    private final Status status;
+    private final String text;
+    private final long number;
+    private final List<String> list;
+
+    private Result(Status status, String text, long number, List<String> list) {
+        this.status = status;
+        this.text = text;
+        this.number = number;
+        this.list = list;
+    }
+
+    public static Result ok(String text) {
+        return new Result(Status.OK, text, 0, null);
+    }
+
+    public static Result ok(long number) {
+        return new Result(Status.OK, null, number, null);
+    }
+
+    public static Result ok(List<String> list) {
+        return new Result(Status.OK, null, 0, list);
+    }
+
+    // the answer to a LOOK with what the client has seen of the location
+    public static Result look(String location, int version, List<String> parts) {
+        return new Result(Status.OK, location, version, parts);
+    }
+
+    public static Result notModified(String location, int version) {
+        return new Result(Status.NOT_MODIFIED, location, version, null);
+    }
+
+    public static Result fail(Status status) {
+        return new Result(status, null, 0, null);
+    }
+
+    // a failure with details, e.g. the position in a queue and a message about it
+    public static Result fail(Status status, long number, String text) {
+        return new Result(status, text, number, null);
+    }
+
+    public boolean isOk() {
+        return this.status == Status.OK || this.status == Status.NOT_MODIFIED;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    public long getNumber() {
+        return this.number;
+    }
+
+    public List<String> getList() {
+        return this.list;
+    }
+}
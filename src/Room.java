@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The things at one location of a MUD instance, once the instance has
+ * changed them. Players and items are kept apart, the players in a set
+ * and the items in a multiset (item -> how many of it are there), both
+ * hashed, so finding, adding or removing one costs the same however
+ * crowded the room is. Both can be read from any thread.
+ * The description of the location is kept until the next time something
+ * is added to or removed from it, so looking around a room where nothing
+ * happens does not build the string again. Every change also bumps the
+ * version of the room, so a client which has seen a version knows it
+ * has not changed as long as the version is the same.
+ */
+class Room {
+    private final Set<String> players = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> items = new ConcurrentHashMap<>();
+    private volatile String description; // null when it has to be built again
+    private volatile String contents;    // the things part of it, null like description
+    private volatile int version = 1;    // the template's things are version 0
+
+    Room(List<String> initial) {
+        for(String item : initial) {
+            this.items.merge(item, 1, Integer::sum);
+        }
+    }
+
+    // read only views, used to save the room
+    public Set<String> players() {
+        return Collections.unmodifiableSet(this.players);
+    }
+
+    public Map<String, Integer> items() {
+        return Collections.unmodifiableMap(this.items);
+    }
+
+    public boolean hasPlayer(String player) {
+        return this.players.contains(player);
+    }
+
+    public boolean hasItem(String item) {
+        return this.items.containsKey(item);
+    }
+
+    public void addPlayer(String player) {
+        if(this.players.add(player)) {
+            this.changed();
+        }
+    }
+
+    public boolean removePlayer(String player) {
+        boolean removed = this.players.remove(player);
+        if(removed) {
+            this.changed();
+        }
+        return removed;
+    }
+
+    public void addItem(String item) {
+        this.items.merge(item, 1, Integer::sum);
+        this.changed();
+    }
+
+    // take one of the item away; false if there is none
+    public boolean removeItem(String item) {
+        boolean[] removed = { false };
+        this.items.computeIfPresent(item, (name, count) -> {
+            removed[0] = true;
+            return count == 1 ? null : count - 1;
+        });
+        if(removed[0]) {
+            this.changed();
+        }
+        return removed[0];
+    }
+
+    // only the thread running the instance changes rooms, so ++ is safe
+    private void changed() {
+        this.description = null;
+        this.contents = null;
+        this.version++;
+    }
+
+    public int version() {
+        return this.version;
+    }
+
+    // the description of location v of the template with the things of this room
+    public String describe(WorldTemplate template, int v) {
+        String d = this.description;
+        if(d == null) {
+            d = template.header(v) + this.contents();
+            this.description = d;
+        }
+        return d;
+    }
+
+    // the part of the description listing the things of this room
+    public String contents() {
+        String c = this.contents;
+        if(c == null) {
+            List<String> things = new ArrayList<>();
+            for(Map.Entry<String, Integer> item : this.items.entrySet()) {
+                for(int i = 0; i < item.getValue(); i++) {
+                    things.add(item.getKey());
+                }
+            }
+            things.addAll(this.players);
+            c = WorldTemplate.contents(things);
+            this.contents = c;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Shortest ways between the locations of a world (every route counts as
+ * one step). Small worlds get a next-hop table: for every pair of
+ * locations, which route to take first. It has size² entries of a byte,
+ * so it is built once per template, one breadth first search per target
+ * over the reversed routes, all the targets in parallel. Afterwards a way
+ * costs one lookup per step. Worlds too big for a table search from the
+ * start to the target when asked and keep the ways found in an LRU cache.
+ */
+class Router {
+    private static final int TABLE_LIMIT = Integer.getInteger("mud.route.table", 2048);   // up to 4MB of table
+    private static final int CACHE_SIZE = Integer.getInteger("mud.route.cache", 10000);   // ways kept without a table
+
+    private final WorldTemplate template;
+    private final int size;
+    private final byte[] next;    // [from * size + to] -> ordinal of the direction to take, -1 if there is no way; null without a table
+    private final Map<Long, byte[]> cache;  // from * size + to -> the directions of the way, least recently used first
+
+    Router(WorldTemplate template) {
+        this.template = template;
+        this.size = template.size();
+        if(this.size <= TABLE_LIMIT) {
+            this.next = this.buildTable();
+            this.cache = null;
+        } else {
+            this.next = null;
+            this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return this.size() > CACHE_SIZE;
+                }
+            };
+        }
+    }
+
+    public boolean hasTable() {
+        return this.next != null;
+    }
+
+    /**
+     * The directions to take to get from one location to the other, in
+     * order; empty if they are the same, null if there is no way.
+     */
+    public byte[] way(int from, int to) {
+        if(from < 0 || to < 0) {
+            return null;
+        }
+        if(this.next == null) {
+            return this.cached(from, to);
+        }
+        byte[] steps = new byte[16];
+        int length = 0;
+        for(int v = from; v != to; ) {
+            byte d = this.next[v * this.size + to];
+            if(d < 0) {
+                return null;
+            }
+            if(length == steps.length) {
+                steps = Arrays.copyOf(steps, 2 * length);
+            }
+            steps[length++] = d;
+            v = this.template.route(v, Direction.of(d));
+        }
+        return Arrays.copyOf(steps, length);
+    }
+
+    // the reversed routes, as (source, direction) lists per destination
+    private byte[] buildTable() {
+        int[] first = new int[this.size + 1];
+        for(int v = 0; v < this.size; v++) {
+            for(int i = 0; i < this.template.routeCount(v); i++) {
+                if(this.usable(v, i)) {
+                    first[this.template.routeDest(v, i) + 1]++;
+                }
+            }
+        }
+        for(int v = 0; v < this.size; v++) {
+            first[v + 1] += first[v];
+        }
+        int[] source = new int[first[this.size]];
+        byte[] direction = new byte[first[this.size]];
+        int[] fill = Arrays.copyOf(first, this.size);
+        for(int v = 0; v < this.size; v++) {
+            for(int i = 0; i < this.template.routeCount(v); i++) {
+                if(!this.usable(v, i)) {
+                    continue;
+                }
+                int e = fill[this.template.routeDest(v, i)]++;
+                source[e] = v;
+                direction[e] = (byte)this.template.routeDir(v, i);
+            }
+        }
+
+        byte[] table = new byte[this.size * this.size];
+        Arrays.fill(table, (byte)-1);
+        // each target only writes its own column, so the searches need no lock
+        IntStream.range(0, this.size).parallel().forEach(to -> {
+            int[] queue = new int[this.size];
+            boolean[] reached = new boolean[this.size];
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = to;
+            reached[to] = true;
+            while(head < tail) {
+                int v = queue[head++];
+                for(int e = first[v]; e < first[v + 1]; e++) {
+                    int u = source[e];
+                    if(!reached[u]) {
+                        reached[u] = true;
+                        table[u * this.size + to] = direction[e];
+                        queue[tail++] = u;
+                    }
+                }
+            }
+        });
+        return table;
+    }
+
+    // a move goes along the first route in a direction, a second one in the same direction cannot be taken
+    private boolean usable(int v, int i) {
+        return this.template.route(v, Direction.of(this.template.routeDir(v, i))) == this.template.routeDest(v, i);
+    }
+
+    private byte[] cached(int from, int to) {
+        long key = (long)from * this.size + to;
+        synchronized(this.cache) {
+            if(this.cache.containsKey(key)) {
+                return this.cache.get(key);
+            }
+        }
+        byte[] way = this.search(from, to);
+        synchronized(this.cache) {
+            this.cache.put(key, way);
+        }
+        return way;
+    }
+
+    // breadth first from the start until the target is reached
+    private byte[] search(int from, int to) {
+        int[] parent = new int[this.size];
+        byte[] taken = new byte[this.size];
+        Arrays.fill(parent, -1);
+        int[] queue = new int[this.size];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = from;
+        parent[from] = from;
+        while(head < tail && parent[to] < 0) {
+            int v = queue[head++];
+            for(int i = 0; i < this.template.routeCount(v); i++) {
+                int w = this.template.routeDest(v, i);
+                if(parent[w] < 0 && this.usable(v, i)) {
+                    parent[w] = v;
+                    taken[w] = (byte)this.template.routeDir(v, i);
+                    queue[tail++] = w;
+                }
+            }
+        }
+        if(parent[to] < 0) {
+            return null;
+        }
+        int length = 0;
+        for(int v = to; v != from; v = parent[v]) {
+            length++;
+        }
+        byte[] steps = new byte[length];
+        for(int v = to; v != from; v = parent[v]) {
+            steps[--length] = taken[v];
+        }
+        return steps;
+    }
+}
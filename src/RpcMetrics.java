@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Times every call made on ServerInterface. The server is exported
+ * through a proxy which calls the real server and records, for each
+ * method, a latency histogram, the number of calls and of errors and,
+ * for one call in SIZE_SAMPLE, how many bytes the arguments and the
+ * answer take when serialized. Each method is also shown through JMX
+ * as mud:type=Rpc,name=<method>.
+ */
+class RpcMetrics implements InvocationHandler {
+    private static final int SIZE_SAMPLE = 64;  // measuring the payload means serializing it again
+
+    private final Object target;
+    private final Map<String, RpcStats> methods = new ConcurrentHashMap<>();
+
+    // the numbers of one method
+    static class RpcStats implements RpcStatsMBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicLong started = new AtomicLong();
+        private final LongAdder samples = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+
+        public long getCalls() { return this.latency.count(); }
+        public long getErrors() { return this.errors.sum(); }
+        public long getMeanMicros() { return this.latency.mean() / 1000; }
+        public long getP50Micros() { return this.latency.percentile(0.5) / 1000; }
+        public long getP99Micros() { return this.latency.percentile(0.99) / 1000; }
+        public long getP999Micros() { return this.latency.percentile(0.999) / 1000; }
+        public long getMaxMicros() { return this.latency.max() / 1000; }
+
+        public long getMeanRequestBytes() {
+            long count = this.samples.sum();
+            return count == 0 ? 0 : this.requestBytes.sum() / count;
+        }
+
+        public long getMeanResponseBytes() {
+            long count = this.samples.sum();
+            return count == 0 ? 0 : this.responseBytes.sum() / count;
+        }
+
+        public String summary() {
+            return this.latency.summary() + ", errors " + this.getErrors()
+                + ", request " + this.getMeanRequestBytes() + "B, response " + this.getMeanResponseBytes() + "B";
+        }
+    }
+
+    // counts bytes without keeping them
+    private static class CountingStream extends OutputStream {
+        long count = 0;
+
+        public void write(int b) {
+            this.count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+
+    private RpcMetrics(Object target) {
+        this.target = target;
+    }
+
+    // a ServerInterface which records the calls made to the given server
+    public static RpcMetrics wrap(ServerInterface server) {
+        return new RpcMetrics(server);
+    }
+
+    // what the clients get: only the calls of ServerInterface
+    public ServerInterface proxy() {
+        return (ServerInterface)Proxy.newProxyInstance(ServerInterface.class.getClassLoader(),
+            new Class<?>[] { ServerInterface.class }, this);
+    }
+
+    // what the other nodes get, measured together with the calls of the clients
+    public NodeInterface nodeProxy() {
+        return (NodeInterface)Proxy.newProxyInstance(NodeInterface.class.getClassLoader(),
+            new Class<?>[] { NodeInterface.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if(method.getDeclaringClass() == Object.class) {    // equals, hashCode, toString
+            return method.invoke(this.target, args);
+        }
+
+        RpcStats stats = this.methods.computeIfAbsent(method.getName(), this::register);
+        boolean sample = stats.started.getAndIncrement() % SIZE_SAMPLE == 0;
+        long start = System.nanoTime();
+        try {
+            Object result = method.invoke(this.target, args);
+            if(sample) {
+                long request = size(args);
+                long response = size(result);
+                if(request >= 0 && response >= 0) {
+                    stats.requestBytes.add(request);
+                    stats.responseBytes.add(response);
+                    stats.samples.increment();
+                }
+            }
+            return result;
+        } catch(InvocationTargetException e) {
+            stats.errors.increment();
+            throw e.getCause();
+        } finally {
+            stats.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    // serialized size, -1 if something in it cannot be serialized
+    private static long size(Object value) {
+        CountingStream counter = new CountingStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            out.writeObject(value);
+        } catch(IOException e) {
+            return -1;
+        }
+        return counter.count;
+    }
+
+    private RpcStats register(String method) {
+        RpcStats stats = new RpcStats();
+        register("mud:type=Rpc,name=" + method, stats, RpcStatsMBean.class);
+        return stats;
+    }
+
+    // show an object through JMX; failing to do so is not a reason to stop
+    public static <T> void register(String name, T mbean, Class<T> type) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(mbean, type), objectName);
+        } catch(JMException e) {
+            System.err.println("Error, cannot register " + name + ": " + e.getMessage());
+        }
+    }
+
+    public static void unregister(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch(JMException e) {
+            System.err.println("Error, cannot unregister " + name + ": " + e.getMessage());
+        }
+    }
+
+    // one line per method which has been called, in alphabetical order
+    public String snapshot() {
+        StringBuilder snapshot = new StringBuilder();
+        for(Map.Entry<String, RpcStats> method : new TreeMap<>(this.methods).entrySet()) {
+            snapshot.append("\n\t\t├-> ").append(method.getKey()).append(": ").append(method.getValue().summary());
+        }
+        return snapshot.toString();
+    }
+}
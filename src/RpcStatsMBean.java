@@ -0,0 +1,15 @@
+/**
+ * What JMX shows about one method of ServerInterface.
+ * Times are in microseconds, sizes in bytes.
+ */
+public interface RpcStatsMBean {
+    long getCalls();
+    long getErrors();
+    long getMeanMicros();
+    long getP50Micros();
+    long getP99Micros();
+    long getP999Micros();
+    long getMaxMicros();
+    long getMeanRequestBytes();
+    long getMeanResponseBytes();
+}
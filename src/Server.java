@@ -1,7 +1,7 @@
-import java.rmi.RemoteException;
+import java.io.IOException;
 
 public class Server {
-    public static void main(String[] args) throws RemoteException {
+    public static void main(String[] args) throws IOException {
         Integer port_reg = 0;
         Integer port_server = 0;
         Integer max_dungeons = 2;
@@ -16,6 +16,16 @@ public class Server {
             System.err.println("Error, wrong arguments. Default ones set.\n <rmi_registry_port> <rmi_server_port> <max_dungeons_allowed> <max_players_allowed>\n");
         }
 
-        new ServerImpl(port_reg, port_server, max_dungeons, max_players, 16);
+        // RMI is the default, with -Dmud.rmi=false only the text front end is there
+        ServerImpl server;
+        if(Boolean.parseBoolean(System.getProperty("mud.rmi", "true"))) {
+            server = new ServerImpl(port_reg, port_server, max_dungeons, max_players, 16);
+        } else {
+            server = new ServerImpl(max_dungeons, max_players, 16);
+        }
+        String text = System.getProperty("mud.text");
+        if(text != null) {
+            server.listenText(Integer.parseInt(text));
+        }
     }
 }
\ No newline at end of file
@@ -1,37 +1,69 @@
 import java.util.*;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.SimpleDateFormat;
-
-public class ServerImpl implements ServerInterface {
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+public class ServerImpl implements NodeInterface {
     private String serverName;
     // fields for users
     /**
      * Was thinking of having lists of ClientImpl but it makes
      * things a lot more complicated when it comes to authentication.
      */
-    private ArrayList<String> players = new ArrayList<>();   // list of players
-    private ArrayList<String> playersWaiting = new ArrayList<>();    // list of players waiting to enter
+    private PlayerRegistry players;  // names and spots of the players, taken without a lock
+    private AdmissionQueue<String, ClientInterface> playersWaiting = new AdmissionQueue<>();    // players waiting to enter, in order
     private Integer maxPlayers; // maximum allowed connected players
-    private boolean serverLock = false;    // lock on server (used so that no more than 1 person can use server functionality at a time)
     private Integer inventoryLimit; // maximum inventory limit (maybe remove from here)
+    private Map<Long, Session> sessions = new ConcurrentHashMap<>();   // session id -> state of a logged in player
+    private SecureRandom sessionIds = new SecureRandom();   // session ids must not be guessable
 
     // fields for MUD(s)
-    private Map<String, MUD> allMUD = new HashMap<>();  // hash map of all muds on the server
+    private Map<String, MUDActor> allMUD = new ConcurrentHashMap<>();  // hash map of all muds on the server
     private Integer maxMUDS;    // maximum allowed muds on server
+    private ExecutorService workers;    // threads which run the commands of every mud instance
+    private EventDispatcher events; // pushes what happens in the muds to the players
+    private ServerLog log;  // where notices end up (the console or the file given with -Dmud.log)
+    private Journal journal;    // changes to the muds, if -Dmud.journal names a directory (null otherwise)
+    private ScheduledExecutorService snapshots; // saves every mud from time to time so the journal can be cut
+    private RpcMetrics rpc = RpcMetrics.wrap(this);  // latency of every remote call, clients go through it
+    private TextServer text;    // the plain text front end, if -Dmud.text gives a port (null otherwise)
+    private Hibernation hibernation;    // where idle muds are saved, if -Dmud.hibernate gives an idle time (null otherwise)
+    private Map<String, Integer> asleep = new ConcurrentHashMap<>();   // name -> maximum players of the muds on disk
+    private ScheduledExecutorService sweeper;   // hibernates the muds nobody has used for a while
+    private ScheduledExecutorService visits;    // checks that the nodes of the visitors are still up
+
+    // fields for running as one of several nodes (-Dmud.node), all null when the server runs alone
+    private String nodeName;    // the name of this node among the others
+    private Directory directory;    // which node owns which dungeon, kept in the shared registry
+    private NodeInterface self; // the exported stub of this node, what the directory hands out
 
 
     public String menu() {
         String msg = "\t\t\t\t|Main Menu|";
         msg += "\n\t|Currently connected to server -> " + serverName;
+        if(this.nodeName != null) {
+            msg += " (node " + this.nodeName + ")";
+        }
         // You are on server " + serverName;
         msg += "\n\t|Create a new mud game -> /create <gamename>";
         msg += "\n\t|Join a mud game -> /join <gamename>";
+        msg += "\n\t|Dungeon statistics -> /stats";
+        msg += "\n\t|Server statistics (calls, latencies) -> /admin";
         msg += "\n\t|Exit server -> /disconnect";
         msg += "\n\t|List of currently active MUD games: ";
         msg += this.listCurrentMUDs(true);
@@ -40,70 +72,120 @@ public class ServerImpl implements ServerInterface {
     }
 
     // add a possibility for users to specify custom files for edges,vertices and msgs
-    public void createDungeonInstance(String name, int num, ClientImpl client) {
-        if(!this.spotForMUD()) {    // if there is a spot for an instance, create it
-            String thg = "mymud.thg";
-            String msg = "mymud.msg";
-            String edg = "mymud.edg";
-
-            MUD mud = new MUD(edg, msg, thg, num);
-            this.notice("\tUser [" + client.getUsername() + "] has created a MUD named [" + name + "].", false);
-            this.allMUD.put(name, mud);
-        } else {
+    public void createDungeonInstance(String name, int num, long session) throws RemoteException {
+        Session client = this.getSession(session);
+        Result result = this.createDungeon(name, num, client);
+        if(result.getStatus() == Result.Status.NO_SPOT_FOR_DUNGEON) {
             // think about changing this from void to boolean
             this.notice("\tUser [" + client.getUsername() + "] failed to create an instance. No free spots left.", true);
-            
         }
     }
 
+    // create the instance on this node; the caller has checked the name and the spot
+    private void createLocal(String name, int num, String creator) throws RemoteException {
+        this.makeRoom();
+        String thg = "mymud.thg";
+        String msg = "mymud.msg";
+        String edg = "mymud.edg";
+
+        // the files are only parsed for the first instance, the rest share the template;
+        // a compiled image given with -Dmud.world is mapped instead of parsed
+        String world = System.getProperty("mud.world");
+        WorldTemplate template = world != null ? WorldTemplate.load(world, "", "") : WorldTemplate.load(edg, msg, thg);
+        MUD mud = new MUD(template, num);
+        if(this.journal != null) {
+            mud.setJournal(this.journal, name);
+        }
+        this.addInstance(name, mud);
+        this.notice("\tUser [" + creator + "] has created a MUD named [" + name + "].", false);
+    }
+
+    private void addInstance(String name, MUD mud) {
+        MUDActor actor = new MUDActor(name, mud, this.workers, this.events);
+        actor.setTickMillis(Long.getLong("mud.tick", 0));
+        this.allMUD.put(name, actor);
+        RpcMetrics.register("mud:type=Dungeon,name=" + ObjectName.quote(name), actor, MUDActorMBean.class);
+    }
+
     // list all active muds
     // uses a flag because i need a different representation for 
     // when the menu is shown and when the players asks for a listing
+    // with several nodes the dungeons of the other nodes are listed too
     public String listCurrentMUDs(boolean flag) {
-        Iterator iterator = allMUD.entrySet().iterator();
         String msg;
         if(flag) {
             msg = "";
         } else {
             msg = "\t|List of currently active MUD games: ";
         }
-        if(allMUD.size() <= 0) {
+        String games = this.listLocalMUDs();
+        if(this.directory != null) {
+            try {
+                for(NodeInterface node : this.directory.nodes(this.nodeName)) {
+                    try {
+                        games += node.listLocalMUDs();
+                    } catch(RemoteException e) {
+                        // the node is down, its dungeons are gone with it
+                    }
+                }
+            } catch(RemoteException e) {
+                this.notice("\tError, cannot reach the registry: " + e.getMessage(), true);
+            }
+        }
+        if(games.isEmpty()) {
             msg += "\n\t\t*No MUD games active.";
             return msg;
         }
+        return msg + games;
+    }
+
+    public String listLocalMUDs() {
+        Iterator iterator = allMUD.entrySet().iterator();
+        String msg = "";
         while(iterator.hasNext()) {
             Map.Entry pair = (Map.Entry)iterator.next();    // get each pair and unpack it
             String name = (String)pair.getKey();    // the name of the mud game
-            MUD game = (MUD)pair.getValue();    // the actual mud game instance
-            Integer currentPlayers = game.getPlayers().size();  // get the number of players in the mud
+            MUDActor game = (MUDActor)pair.getValue();    // the actual mud game instance
+            Integer currentPlayers = game.playerCount();  // get the number of players in the mud
             Integer maxPlayers = game.getMaxPlayers();  // get the maximum allowed players in the mud
 
             msg += "\n\t\t├-> " + name + " (" + currentPlayers + "/" + maxPlayers + ")"; // add a message with info
+            if(this.nodeName != null) {
+                msg += " on node " + this.nodeName;
+            }
+        }
+        // the muds on disk are listed from what was saved, they stay there until somebody joins
+        for(Map.Entry<String, Integer> mud : this.asleep.entrySet()) {
+            msg += "\n\t\t├-> " + mud.getKey() + " (0/" + mud.getValue() + ") asleep";
+            if(this.nodeName != null) {
+                msg += " on node " + this.nodeName;
+            }
         }
         return msg;
     }
 
     public String listCurrentPlayersServer() {
         String players = "\n\t|List of online players: ";
-        for(String user : this.players) {
+        for(String user : this.players.players()) {
             players += "\n\t\t├->[" + user + "]";
         }
         return players;
     }
 
-    public boolean mudExists(String name) {
-        if(this.allMUD.keySet().contains(name)) {
+    public boolean mudExists(String name) throws RemoteException {
+        if(this.allMUD.keySet().contains(name) || this.asleep.containsKey(name)) {
             return true;
         }
-        return false;
+        return this.remoteOwner(name) != null;
     }
 
     // used to check if there's a spot for another dungeon instance
     // I realised it's inverted waaaaaaaaaay too far into development 
     // and changing it creates a lot of trouble so it will remain like this.
+    // with hibernation a mud nobody is in can go to disk to make a spot
     public boolean spotForMUD() {
         if(this.allMUD.size() >= this.maxMUDS) {
-            return true;
+            return this.hibernation == null || this.idleMUD() == null;
         }
         return false;
     }
@@ -117,7 +199,7 @@ public class ServerImpl implements ServerInterface {
      * and easier to find/edit. 
      */ 
     // code taken from the practical on rmi
-    private void createServer(int port_reg, int port_serv) throws RemoteException {
+    private void createServer(int port_reg, int port_serv, Registry registry) throws RemoteException {
         try {
             this.serverName = (InetAddress.getLocalHost()).getCanonicalHostName();
         } catch(UnknownHostException e) {
@@ -128,14 +210,23 @@ public class ServerImpl implements ServerInterface {
         System.setProperty("java.security.policy", ".policy");
         System.setSecurityManager(new SecurityManager());
 
-        ServerInterface mud_interface = (ServerInterface)UnicastRemoteObject.exportObject(this, port_serv);
+        // clients get the instrumented proxy, which calls this object; it only
+        // has the calls of ServerInterface, the ones between nodes are exported apart
+        ServerInterface mud_interface = (ServerInterface)UnicastRemoteObject.exportObject(this.rpc.proxy(), port_serv);
 
         String url = "rmi://" + this.serverName + ":" + port_reg + "/mud";
-        try {
-            Naming.rebind(url, mud_interface);
-        } catch(MalformedURLException e) {
-            System.err.println("Error, malformed url: " + e.getMessage());
-            // e.printStackTrace();
+        this.nodeName = System.getProperty("mud.node");
+        if(this.nodeName == null) {
+            try {
+                Naming.rebind(url, mud_interface);
+            } catch(MalformedURLException e) {
+                System.err.println("Error, malformed url: " + e.getMessage());
+                // e.printStackTrace();
+            }
+        } else {
+            NodeInterface node_interface = (NodeInterface)UnicastRemoteObject.exportObject(this.rpc.nodeProxy(), port_serv);
+            this.joinNodes(registry, mud_interface, node_interface);
+            url = "rmi://" + this.serverName + ":" + port_reg + "/mud:" + this.nodeName;
         }
 
         this.notice("\tServer registered on " + url,false);
@@ -149,67 +240,218 @@ public class ServerImpl implements ServerInterface {
 
     }
 
-    // This is just a custom fancy way of displaying 
-    // notices to the console with a timestamp and date
-    public void notice(String msg, boolean err) {
-        SimpleDateFormat formatter = new SimpleDateFormat("[dd/MM/yyyy HH:mm:ss] ");
-        String date = formatter.format(new Date());
-        
-        if(!err) {
-            System.out.println(date + msg);
-        } else {
-            System.err.println(date + msg);
+    // register as one of the nodes sharing the registry: clients find the
+    // node as "mud:<name>" and the first one also as "mud" for clients which
+    // do not pick a node, the other nodes find it as "node:<name>", and the
+    // dungeons brought back by the journal take their names back
+    private void joinNodes(Registry registry, ServerInterface clients, NodeInterface stub) throws RemoteException {
+        this.self = stub;
+        this.directory = new Directory(registry);
+        this.directory.addNode(this.nodeName, stub);
+        registry.rebind("mud:" + this.nodeName, clients);
+        if(this.directory.bindIfFree("mud", clients)) {
+            this.notice("\tNode [" + this.nodeName + "] is the default node.", false);
+        }
+        for(String name : this.allMUD.keySet()) {
+            this.directory.reclaim(name, stub);
+        }
+        for(String name : this.asleep.keySet()) {
+            this.directory.reclaim(name, stub);
+        }
+
+        // a node which goes down cannot tell us its players have gone
+        long interval = Long.getLong("mud.node.ping", 10);
+        this.visits = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread visits = new Thread(runnable, "mud-visits");
+            visits.setDaemon(true);
+            return visits;
+        });
+        this.visits.scheduleWithFixedDelay(this::checkVisitors, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public String getNodeName() {
+        return this.nodeName;
+    }
+
+    // a session for a player of another node which plays in one of our dungeons;
+    // it takes no spot on this node, the player has one on its own
+    public long attach(String username, ClientInterface listener, NodeInterface home) throws RemoteException {
+        if(this.directory == null || home == null) {
+            throw new RemoteException("Error, only the nodes of a shared registry can attach players.");
         }
+        Session session = this.createSession(username, listener, home);
+        this.notice("\tUser [" + username + "] is visiting from another node.", false);
+        return session.getId();
     }
 
-    public boolean playerExists(ClientImpl client) {
-        if(this.players.contains(client.getUsername())) {
+    // asked by a full node; the name is claimed before the lock is taken,
+    // nothing remote is ever called while holding it
+    public Result createLocalDungeon(String name, int num, String creator) throws RemoteException {
+        if(this.directory == null) {
+            throw new RemoteException("Error, only the nodes of a shared registry can create dungeons for each other.");
+        }
+        if(!this.directory.claim(name, this.self)) {
+            return Result.fail(Result.Status.DUNGEON_EXISTS);
+        }
+        if(this.createIfSpot(name, num, creator)) {
+            return Result.ok(name);
+        }
+        this.directory.release(name);
+        return Result.fail(Result.Status.NO_SPOT_FOR_DUNGEON);
+    }
+
+    // create the instance here if the name is free locally and there is a spot, under one lock
+    private boolean createIfSpot(String name, int num, String creator) throws RemoteException {
+        synchronized(this.allMUD) {
+            if(this.spotForMUD()) {
+                return false;
+            }
+            this.createLocal(name, num, creator);
             return true;
         }
-        return false;
+    }
+
+    // the other node which owns a dungeon, null if it is ours or does not exist
+    private NodeInterface remoteOwner(String name) throws RemoteException {
+        if(this.directory == null || this.allMUD.containsKey(name) || this.asleep.containsKey(name)) {
+            return null;
+        }
+        return this.directory.owner(name);
+    }
+
+    // accept players over plain text on the port as well
+    void listenText(int port) throws IOException {
+        if(this.serverName == null) {   // without rmi nobody has asked yet
+            this.serverName = InetAddress.getLocalHost().getCanonicalHostName();
+        }
+        this.text = new TextServer(this, port);
+        this.text.start();
+    }
+
+    // the server with every call measured, for front ends in this process
+    ServerInterface instrumented() {
+        return this.rpc.proxy();
+    }
+
+    // This is just a custom fancy way of displaying 
+    // notices to the console with a timestamp and date
+    // the message is only handed to the log here, a background thread
+    // adds the date and writes it, so callers never wait for the console
+    public void notice(String msg, boolean err) {
+        this.log.append(msg, err);
+    }
+
+    // true while the name is used by a player, online or waiting to get in
+    public boolean playerExists(String username) {
+        return this.players.isTaken(username);
     }
 
     // handle logging in to the server
-    public boolean playerLogIn(ClientImpl client) {
-        // if the server is not full
-        if(this.players.size() < this.maxPlayers) {
-            // if the player is already waiting to join
-            if(this.playersWaiting.contains(client.getUsername())) {
-                this.playersWaiting.remove(client.getUsername());
-            }
-            // add the client to players (essentially he has connected)
-            this.players.add(client.getUsername());
-            String msg1 = "\tUser [" + client.getUsername() + "] has joined the server. Capacity " + this.players.size() + "/" + this.maxPlayers;
-            String msg2 = "\tThere are currently " + this.playersWaiting.size() + " players waiting to join the server.";
-            this.notice(msg1, false);
-            this.notice(msg2, false);
-            return true;
-        } else {    // if the server is full
-            // we check if the player has made an attempt to log in previously
-            // and has been added to the waiting list
-            if(!this.playersWaiting.contains(client.getUsername())) {
-                this.playersWaiting.add(client.getUsername());
-                String msg = "\tUser [" + client.getUsername() + "] has attempted to join the server."
-                + " Server is full and there are " + this.playersWaiting.size() + " players waiting to connect.";
-                this.notice(msg, false);
+    /**
+     * Returns the id of the new session, or 0 if the server is full (or
+     * the name is taken). Players are let in strictly in order of arrival:
+     * if somebody is already waiting the new player goes to the back of
+     * the queue even if a spot is free at this moment. A waiting player is
+     * told about its position and gets the session through the listener
+     * once a spot frees up, so it never has to ask again. Without a
+     * listener nobody could be told, so the player is not queued at all.
+     */
+    public long playerLogIn(String username, ClientInterface listener) {
+        Result result = this.logIn(username, listener);
+        return result.isOk() ? result.getNumber() : 0;
+    }
+
+    // the name is claimed and the spot reserved already
+    private long admitPlayer(String username, ClientInterface listener) {
+        Session session = this.createSession(username, listener, null);
+        this.players.admit(username, session.getId());
+        String msg1 = "\tUser [" + username + "] has joined the server. Capacity " + this.players.online() + "/" + this.maxPlayers;
+        String msg2 = "\tThere are currently " + this.playersWaiting.size() + " players waiting to join the server.";
+        this.notice(msg1, false);
+        this.notice(msg2, false);
+        return session.getId();
+    }
+
+    // let in as many waiting players as there are free spots, then tell
+    // the ones still waiting where they are now. Any thread may run it at
+    // any time: a spot is reserved before the head of the queue is taken,
+    // and given back if somebody else emptied the queue in between.
+    private void admitWaitingPlayers() {
+        boolean admitted = false;
+        while(!this.playersWaiting.isEmpty() && this.players.reserve()) {
+            Map.Entry<String, ClientInterface> head = this.playersWaiting.poll();
+            if(head == null) {
+                this.players.unreserve();
+                break;
+            }
+            long id = this.admitPlayer(head.getKey(), head.getValue());
+            // if the player has gone away in the meantime, give the spot to the next one
+            this.events.notify(head.getValue(), client -> client.onAdmitted(id), () -> this.playerDisconnect(id));
+            admitted = true;
+        }
+        if(admitted) {
+            int position = 1;
+            for(Map.Entry<String, ClientInterface> waiter : this.playersWaiting.waiters()) {
+                this.events.publish(waiter.getValue(), new Event(Event.Type.QUEUED, waiter.getKey(), "", this.playersWaiting.describe(position++)));
             }
-            return false;
         }
     }
 
-    public void playerDisconnect(ClientImpl client) {
-        this.players.remove(client.getUsername());
-        this.playersWaiting.remove(client.getUsername());
+    // unknown sessions are ignored so that disconnecting twice is harmless
+    public void playerDisconnect(long id) {
+        Session client = this.sessions.remove(id);
+        if(client == null) {
+            return;
+        }
+        for(MUDActor mud : this.allMUD.values()) {
+            mud.getQueue().remove(client.getUsername());
+        }
+        this.events.remove(client.getListener());
+        if(client.isVisitor()) {    // the spot of the player is on its own node
+            this.notice("\tUser [" + client.getUsername() + "] has gone back to its node.", false);
+            return;
+        }
+        this.detach(client);
+        this.players.release(client.getUsername());
 
-        String msg = "\tUser [" + client.getUsername() + "] has left the server. Capacity [" + this.players.size() + "/" + this.maxPlayers + "]";
+        String msg = "\tUser [" + client.getUsername() + "] has left the server. Capacity [" + this.players.online() + "/" + this.maxPlayers + "]";
         this.notice(msg, false);
+        this.admitWaitingPlayers();
     }
 
-    public boolean isServerFull() {
-        if(this.players.size() >= this.maxPlayers) {
-            return true;
+    // ask every node which has players here if it is still up; the players of
+    // a node which does not answer leave, so they do not keep their spots
+    private void checkVisitors() {
+        Map<NodeInterface, List<Long>> homes = new HashMap<>();
+        for(Session session : this.sessions.values()) {
+            if(session.isVisitor()) {
+                homes.computeIfAbsent(session.getHome(), home -> new ArrayList<>()).add(session.getId());
+            }
         }
-        return false;
+        for(Map.Entry<NodeInterface, List<Long>> home : homes.entrySet()) {
+            try {
+                home.getKey().getNodeName();
+            } catch(RemoteException e) {
+                this.notice("\tA node is down, its " + home.getValue().size() + " players leave: " + e.getMessage(), true);
+                for(long id : home.getValue()) {
+                    this.dropPlayer(id);
+                }
+            }
+        }
+    }
+
+    // a player whose client cannot be reached any more leaves its dungeon and the server
+    private void dropPlayer(long id) {
+        try {
+            this.playerForceShutdown(id);
+        } catch(RemoteException e) {
+            this.notice("\tError, cannot remove an unreachable player from its dungeon: " + e.getMessage(), true);
+        }
+        this.playerDisconnect(id);
+    }
+
+    public boolean isServerFull() {
+        return this.players.isFull();
     }
 
     public Integer getInventoryLimit() {
@@ -226,169 +468,535 @@ public class ServerImpl implements ServerInterface {
 
     /**
      * All methods below have to do with players interacting with a MUD instance
-     * via the server thus a server lock is utilised in each one.
-     * Making sure that one player at a time accesses the remote methods and 
-     * no issue occur.
-     * The lock should always be set to "false" initially and when each method
-     * enters its critical section, it is set to "true" not allowing 
-     * other methods to execute
+     * via the server. None of them touch the MUD directly: the work is sent
+     * to the actor which owns the instance and the RMI thread waits for the
+     * result. Each instance runs one command at a time, so no locks are
+     * needed and players in different dungeons never wait on each other.
      */
-    public boolean playerJoinDungeon(ClientImpl client, String mud_name) {
-        while(this.serverLock) {
-            try {
-                Thread.sleep(250);  // wait untill pinging again to see if the server is free
-            } catch(InterruptedException e ) {
-                e.printStackTrace();
-            }
+    public boolean playerJoinDungeon(long session, String mud_name) throws RemoteException {
+        Session client = this.getSession(session);
+        NodeInterface owner = this.remoteOwner(mud_name);
+        if(owner != null) {
+            return this.joinRemote(owner, mud_name, client).isOk();
+        }
+        MUDActor current = this.wake(mud_name); // retrieve the appropriate dungeon instance for the user
+        if(current == null) {
+            this.notice("\tUser [" + client.getUsername() + "] attempted to join the dungeon " + mud_name + ", which does not exist.", true);
+            return false;
+        }
+        this.leaveDungeons(client);
+        // players waiting in the queue of the instance go first
+        boolean joined;
+        try {
+            joined = current.getQueue().isEmpty() && current.call(mud -> mud.addPlayer(client.getUsername()));
+        } catch(MUDActor.RetiredException e) {
+            return this.playerJoinDungeon(session, mud_name);   // it went to disk meanwhile
         }
 
-        this.setServerLock(true);   // set the lock to true and enter the "critical section"
-
-        MUD current = this.getMUD(mud_name); // retrieve the appropriate dungeon instance for the user
-        // System.out.println(current.toString());
-        if(current.addPlayer(client.getUsername())) {
+        if(joined) {
+            client.setMUDName(mud_name);
+            current.addListener(client.getUsername(), client.getListener());
+            current.publish(new Event(Event.Type.JOINED, client.getUsername(), "", "[" + client.getUsername() + "] has entered the dungeon."));
             String msg = "\tUser [" + client.getUsername() + "] has joined the dungeon " + mud_name + 
-                            " [" + current.getPlayers().size() + "/" + current.getMaxPlayers() + "]";
+                            " [" + current.playerCount() + "/" + current.getMaxPlayers() + "]";
             this.notice(msg, false);
-            this.setServerLock(false);
-            return true;
         } else {
             String msg = "\tUser [" + client.getUsername() + "] attempted to join the dungeon " + mud_name + 
-                            " [" + current.getPlayers().size() + "/" + current.getMaxPlayers() + "]";
+                            " [" + current.playerCount() + "/" + current.getMaxPlayers() + "]";
             this.notice(msg, true);
-            this.setServerLock(false);
-            return false;
         }
-
+        return joined;
     }
 
     // set the players' start location to the muds start location specified
-    public String setStartLocation(ClientImpl client) {
-        while(this.serverLock) {
-            try {
-                Thread.sleep(250);
-            } catch(InterruptedException e) {
-                e.printStackTrace();
-            }
+    public String setStartLocation(long session) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            return client.getOwner().setStartLocation(client.getOwnerSession());
         }
+        MUDActor current = this.getPlayerMUD(client); // get the users current mud instance
+        String start = current.call(mud -> {
+            String location = mud.entryLocation(client.getUsername());
+            mud.addThing(location, client.getUsername());    // add the user to the start position
+            return location;
+        });
+        client.setLocation(start);
+        return start;
+    }
 
-        this.setServerLock(true);
-
-        MUD current = this.getMUD(client.getMUDName()); // get the users current mud instance
-        current.addThing(current.startLocation(), client.getUsername());    // add the user to the start position
+    // move the player to a new location
+    // the location comes from the session, not from what the client thinks it is
+    public String playerMove(long session, String dest) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            return client.getOwner().playerMove(client.getOwnerSession(), dest);
+        }
+        MUDActor current = this.getPlayerMUD(client);
+        String origin = client.getLocation();
+        String destination = current.call(mud -> mud.moveThing(origin, dest, client.getUsername()));
+        client.setLocation(destination);
+        if(!destination.equals(origin)) {
+            current.publish(new Event(Event.Type.MOVED, client.getUsername(), destination,
+                "[" + client.getUsername() + "] has moved from [" + origin + "] to [" + destination + "]."), origin);
+        }
+        return destination;
+    }
 
-        this.setServerLock(false);
+    // give a description of the current location the player is in
+    public String locationInfo(long session) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            return client.getOwner().locationInfo(client.getOwnerSession());
+        }
+        MUDActor current = this.getPlayerMUD(client);
+        return current.call(mud -> mud.locationInfo(client.getLocation()));
+    }
 
-        return current.startLocation();
+    // when a user picks up an item, remove it from the dungeon instance
+    public void itemPickedUp(long session, String item) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            client.getOwner().itemPickedUp(client.getOwnerSession(), item);
+            return;
+        }
+        MUDActor current = this.getPlayerMUD(client);
+        current.call(mud -> {
+            mud.delThing(client.getLocation(), item);
+            return null;
+        });
+        current.publish(new Event(Event.Type.PICKED_UP, client.getUsername(), client.getLocation(),
+            "[" + client.getUsername() + "] has picked up [" + item + "] at [" + client.getLocation() + "]."));
 
+        this.notice("\tUser [" + client.getUsername() + "] has picked up a(n) [" + item + 
+                    "] \n\t\t\tfrom location [" + client.getLocation() + "] in dungeon instance [" + client.getMUDName() +"].",false);
     }
 
-    // move the player to a new location
-    public String playerMove(ClientImpl client, String dest) {
-        while(this.serverLock) {
-            try {
-                Thread.sleep(250);
-            } catch(InterruptedException e) {
-                e.printStackTrace();
-            }
+    // check if an item exists at the players location
+    public boolean itemExists(long session, String item) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            return client.getOwner().itemExists(client.getOwnerSession(), item);
         }
+        MUDActor current = this.getPlayerMUD(client);
+        return current.call(mud -> mud.existsThing(client.getLocation(), item));
+    }
 
-        this.setServerLock(true);
+    // a method which is used to display the dungeon to the user
+    public String displayDungeon(String name) throws RemoteException {
+        NodeInterface owner = this.remoteOwner(name);
+        if(owner != null) {
+            return owner.displayDungeon(name);
+        }
+        MUDActor temp = this.wake(name);
+        if(temp == null) {
+            return "Error, no such MUD exists.";
+        }
+        try {
+            return temp.call(mud -> mud.toString());
+        } catch(MUDActor.RetiredException e) {
+            return this.displayDungeon(name);
+        }
+    }
 
-        MUD current = this.getMUD(client.getMUDName());
-        String destination = current.moveThing(client.getUserLocation(), dest, client.getUsername());
+    public void playerForceShutdown(long session) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            this.detach(client);
+            return;
+        }
+        if(!client.isPlaying()) {
+            return;
+        }
+        MUDActor temp = this.getPlayerMUD(client);
+        String msg = "\tUser [" + client.getUsername() + "] has left the instance [" + client.getMUDName() + "]. Inventory emptied." ;
+        String location = client.getLocation();
+        temp.call(mud -> {
+            mud.removePlayer(client.getUsername(), location);
+            return null;
+        });
+        temp.removeListener(client.getUsername());
+        temp.publish(new Event(Event.Type.LEFT, client.getUsername(), location, "[" + client.getUsername() + "] has left the dungeon."));
+        client.setMUDName("");
+        client.setLocation("");
+        this.notice(msg, false);
+        this.admitWaitingPlayers(temp);
 
-        this.setServerLock(false);
+    }
 
-        return destination;
+    // used when picking up items, to detect if we try to pick up another player
+    public boolean isUser(long session, String item) throws RemoteException {
+        Session client = this.getSession(session);
+        if(client.getOwner() != null) {
+            return client.getOwner().isUser(client.getOwnerSession(), item);
+        }
+        MUDActor temp = this.getPlayerMUD(client);
+        return temp.call(mud -> mud.hasPlayer(item));
     }
 
-    // give a description of the current location the player is in
-    public String locationInfo(ClientImpl client) {
-        while(this.serverLock) {
-            try {
-                Thread.sleep(250);
-            } catch(InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Run a batch of commands in one call. The commands run in order and
+     * the batch stops at the first one which fails, the rest are reported
+     * as skipped. A LOG_IN starts a session which is used by the commands
+     * after it, so a batch can be sent before the player has a session (0).
+     */
+    public List<Result> execute(long session, List<Command> commands) throws RemoteException {
+        List<Result> results = new ArrayList<>();
+        boolean failed = false;
+        for(Command command : commands) {
+            if(failed) {
+                results.add(Result.fail(Result.Status.SKIPPED));
+                continue;
             }
+            Result result = this.execute(session, command);
+            if(command.getType() == Command.Type.LOG_IN && result.isOk()) {
+                session = result.getNumber();
+            }
+            failed = !result.isOk();
+            results.add(result);
         }
+        return results;
+    }
 
-        this.setServerLock(true);
+    private Result execute(long session, Command command) throws RemoteException {
+        switch(command.getType()) {
+            case LOG_IN:
+                return this.logIn(command.getArg(), command.getListener());
+            case INVENTORY:
+                return Result.ok(this.setPlayerInventory());
+            case CREATE_DUNGEON:
+                return this.createDungeon(command.getArg(), command.getNum(), this.getSession(session));
+            case JOIN_DUNGEON:
+                return this.joinDungeon(command.getArg(), this.getSession(session));
+            case LEAVE_QUEUE:
+                if(this.playersWaiting.remove(command.getArg(), command.getListener())) {
+                    this.players.release(command.getArg());
+                }
+                return Result.ok("");
+            case LEAVE_DUNGEON:
+                this.playerForceShutdown(session);
+                return Result.ok("");
+            case MOVE:
+                return Result.ok(this.playerMove(session, command.getArg()));
+            case LOOK:
+                if(command.getArg() == null) {
+                    return Result.ok(this.locationInfo(session));
+                }
+                return this.look(command.getKnown(), this.getSession(session));
+            case PICK_UP:
+                return this.pickUp(command.getArg(), this.getSession(session));
+            case GO_TO:
+                return this.goTo(command.getArg(), this.getSession(session));
+            default:
+                return Result.fail(Result.Status.INVALID);
+        }
+    }
 
-        MUD current = this.getMUD(client.getMUDName());
-        String info = current.locationInfo(client.getUserLocation());
+    // claim the name, then a spot, each in one atomic step, so two players
+    // can never take the same name and the server never lets in too many.
+    // The result of a full server carries the position in the queue.
+    private Result logIn(String username, ClientInterface listener) {
+        if(!this.players.claim(username)) {
+            return Result.fail(Result.Status.NAME_TAKEN);
+        }
+        // if nobody is before us and there is a spot
+        if(this.playersWaiting.isEmpty() && this.players.reserve()) {
+            return Result.ok(this.admitPlayer(username, listener));
+        }
+        if(listener == null) {
+            this.players.release(username);
+            return Result.fail(Result.Status.SERVER_FULL, 0, "Server is full.");
+        }
 
-        this.setServerLock(false);
+        int position = this.playersWaiting.enqueue(username, listener);
+        String msg = "\tUser [" + username + "] has attempted to join the server."
+        + " Server is full and there are " + this.playersWaiting.size() + " players waiting to connect.";
+        this.notice(msg, false);
+        this.events.publish(listener, new Event(Event.Type.QUEUED, username, "", this.playersWaiting.describe(position)));
+        // a spot may have been freed while we were queuing; then we are let in through the listener
+        this.admitWaitingPlayers();
+        return Result.fail(Result.Status.SERVER_FULL, position, this.playersWaiting.describe(position));
+    }
 
-        return info;
+    // check the name and the free spots and create under one lock. With
+    // several nodes the name is claimed in the registry first (only one node
+    // can have it) and the lock is let go before asking another node, which
+    // takes its own lock: two full nodes asking each other at the same time
+    // would otherwise wait for each other forever
+    private Result createDungeon(String name, int num, Session client) throws RemoteException {
+        if(this.directory == null) {
+            synchronized(this.allMUD) {
+                if(this.mudExists(name)) {
+                    return Result.fail(Result.Status.DUNGEON_EXISTS);
+                }
+                if(this.spotForMUD()) {
+                    return Result.fail(Result.Status.NO_SPOT_FOR_DUNGEON);
+                }
+                this.createLocal(name, num, client.getUsername());
+                return Result.ok(name);
+            }
+        }
+        if(this.mudExists(name) || !this.directory.claim(name, this.self)) {
+            return Result.fail(Result.Status.DUNGEON_EXISTS);
+        }
+        if(this.createIfSpot(name, num, client.getUsername())) {
+            return Result.ok(name);
+        }
+        this.directory.release(name);
+        return this.createElsewhere(name, num, client);
     }
 
-    // when a user picks up an item, remove it from the dungeon instance
-    public void itemPickedUp(ClientImpl client, String item) {
-        while(this.serverLock) {
+    // no spot here: the first other node with a spot creates it
+    private Result createElsewhere(String name, int num, Session client) throws RemoteException {
+        for(NodeInterface node : this.directory.nodes(this.nodeName)) {
             try {
-                Thread.sleep(250);
-            } catch(InterruptedException e) {
-                e.printStackTrace();
+                Result result = node.createLocalDungeon(name, num, client.getUsername());
+                if(result.getStatus() != Result.Status.NO_SPOT_FOR_DUNGEON) {
+                    return result;
+                }
+            } catch(RemoteException e) {
+                // the node is down, try the next one
             }
         }
+        return Result.fail(Result.Status.NO_SPOT_FOR_DUNGEON);
+    }
 
-        this.setServerLock(true);
-
-        MUD current = this.getMUD(client.getMUDName());
-        current.delThing(client.getUserLocation(), item);
+    // join an instance and get placed at the start in a single command of the instance
+    // if it is full (or others are already waiting) the player is queued and
+    // gets told through the listener once it has been let in
+    private Result joinDungeon(String name, Session client) throws RemoteException {
+        MUDActor current = this.wake(name);
+        if(current == null) {
+            NodeInterface owner = this.remoteOwner(name);
+            if(owner == null) {
+                return Result.fail(Result.Status.NO_SUCH_DUNGEON);
+            }
+            return this.joinRemote(owner, name, client);
+        }
+        this.leaveDungeons(client);
+        AdmissionQueue<String, Session> queue = current.getQueue();
+        String start = null;
+        if(queue.isEmpty()) {
+            try {
+                start = this.placeInDungeon(current, client);
+            } catch(MUDActor.RetiredException e) {
+                return this.joinDungeon(name, client);  // it went to disk meanwhile
+            }
+        }
 
-        this.notice("\tUser [" + client.getUsername() + "] has picked up a(n) [" + item + 
-                    "] \n\t\t\tfrom location [" + client.getUserLocation() + "] in dungeon instance [" + client.getMUDName() +"].",false);
+        if(start == null) {
+            String msg = "\tUser [" + client.getUsername() + "] attempted to join the dungeon " + name + 
+                            " [" + current.playerCount() + "/" + current.getMaxPlayers() + "]";
+            this.notice(msg, true);
+            if(client.getListener() == null) {
+                return Result.fail(Result.Status.DUNGEON_FULL);
+            }
+            int position = queue.enqueue(client.getUsername(), client);
+            // a spot might have been freed before we got in the queue
+            this.admitWaitingPlayers(current);
+            return Result.fail(Result.Status.DUNGEON_FULL, position, queue.describe(position));
+        }
+        return Result.ok(start);
+    }
 
-        this.setServerLock(false);
+    // a player is in one dungeon at a time: before joining another it leaves
+    // the one it is in (here or on another node) and every queue it waits in
+    private void leaveDungeons(Session client) throws RemoteException {
+        for(MUDActor mud : this.allMUD.values()) {
+            mud.getQueue().remove(client.getUsername());
+        }
+        this.playerForceShutdown(client.getId());
     }
 
-    // check if an item exists at the players location
-    public boolean itemExists(ClientImpl client, String item) {
-        while(this.serverLock) {
-            try {
-                Thread.sleep(250);
-            } catch(InterruptedException e) {
-                e.printStackTrace();
-            }
+    // join a dungeon of another node: the owner gives the player a visitor
+    // session and everything about the dungeon is passed on with it from now
+    // on. A player queued there keeps the session, it is let in by the owner.
+    private Result joinRemote(NodeInterface owner, String name, Session client) throws RemoteException {
+        this.leaveDungeons(client);
+        Result result;
+        long visitor;
+        try {
+            visitor = owner.attach(client.getUsername(), client.getListener(), this.self);
+            result = owner.execute(visitor, Arrays.asList(Command.joinDungeon(name))).get(0);
+        } catch(RemoteException e) {
+            this.directory.forget(name);
+            throw e;
+        }
+        if(result.isOk() || result.getNumber() > 0) {
+            client.setOwner(owner, visitor);
+            client.setMUDName(name);
+            client.setLocation(result.isOk() ? result.getText() : "");
+        } else {
+            owner.playerDisconnect(visitor);
         }
+        return result;
+    }
 
-        this.setServerLock(true);
+    // leave the dungeon of another node the player is in, if any
+    private void detach(Session client) {
+        NodeInterface owner = client.getOwner();
+        long visitor = client.getOwnerSession();
+        if(owner == null) {
+            return;
+        }
+        client.setOwner(null, 0);
+        client.setMUDName("");
+        client.setLocation("");
+        try {
+            owner.playerForceShutdown(visitor);
+            owner.playerDisconnect(visitor);
+        } catch(RemoteException e) {
+            this.notice("\tError, cannot reach the node of user [" + client.getUsername() + "]: " + e.getMessage(), true);
+        }
+    }
 
-        MUD current = this.getMUD(client.getMUDName());
-        boolean exists = current.existsThing(client.getUserLocation(), item);
+    // add the player to the instance at its start location, null if it is full
+    private String placeInDungeon(MUDActor current, Session client) throws RemoteException {
+        String start = current.call(mud -> {
+            if(!mud.addPlayer(client.getUsername())) {
+                return null;
+            }
+            // the start, or where the player was if the server was restarted meanwhile
+            String location = mud.entryLocation(client.getUsername());
+            mud.addThing(location, client.getUsername());
+            return location;
+        });
+        if(start == null) {
+            return null;
+        }
 
-        this.setServerLock(false);
+        client.setMUDName(current.getName());
+        client.setLocation(start);
+        current.addListener(client.getUsername(), client.getListener());
+        current.publish(new Event(Event.Type.JOINED, client.getUsername(), start, "[" + client.getUsername() + "] has entered the dungeon."));
+        this.notice("\tUser [" + client.getUsername() + "] has joined the dungeon " + current.getName() + 
+                        " [" + current.playerCount() + "/" + current.getMaxPlayers() + "]", false);
+        return start;
+    }
 
-        return exists;
+    // let in players waiting for the instance while there is room,
+    // in order, and tell the rest their new position
+    private void admitWaitingPlayers(MUDActor current) throws RemoteException {
+        AdmissionQueue<String, Session> queue = current.getQueue();
+        synchronized(queue) {
+            boolean admitted = false;
+            Map.Entry<String, Session> head;
+            while((head = queue.peek()) != null) {
+                Session client = head.getValue();
+                String start = this.placeInDungeon(current, client);
+                if(start == null) {
+                    break;
+                }
+                queue.poll();
+                admitted = true;
+                // if the player has gone away in the meantime, it leaves and the next one gets the spot
+                this.events.notify(client.getListener(), listener -> listener.onDungeonAdmitted(current.getName(), start),
+                    () -> this.dropPlayer(client.getId()));
+            }
+            if(admitted) {
+                int position = 1;
+                for(Map.Entry<String, Session> waiter : queue.waiters()) {
+                    this.events.publish(waiter.getValue().getListener(), new Event(Event.Type.QUEUED, waiter.getKey(), "", queue.describe(position++)));
+                }
+            }
+        }
     }
 
-    // a method which is used to display the dungeon to the user
-    public String displayDungeon(String name) {
-        MUD temp = this.getMUD(name);
-        return temp.toString();
+    // send only what the client does not have: nothing if it has seen this
+    // version of the location, only the things if it has seen another one
+    private Result look(Map<String, Integer> known, Session client) throws RemoteException {
+        if(client.getOwner() != null) {
+            return client.getOwner().execute(client.getOwnerSession(), Arrays.asList(Command.look(known))).get(0);
+        }
+        MUDActor current = this.getPlayerMUD(client);
+        String location = client.getLocation();
+        Integer version = known.get(location);
+        return current.call(mud -> {
+            int now = mud.version(location);
+            if(version == null) {
+                return Result.look(location, now, Arrays.asList(mud.header(location), mud.contents(location)));
+            }
+            if(now == version) {
+                return Result.notModified(location, now);
+            }
+            return Result.look(location, now, Arrays.asList(mud.contents(location)));
+        });
     }
 
-    public void playerForceShutdown(ClientImpl client) {
-        MUD temp = this.getMUD(client.getMUDName());
-        String msg = "\tUser [" + client.getUsername() + "] has left the instance [" + client.getMUDName() + "]. Inventory emptied." ;
-        temp.removePlayer(client);
-        this.notice(msg, false);
+    // walk the whole way to a location in one command of the instance; the
+    // players who see the start or the end are told, not the ones on the way
+    private Result goTo(String target, Session client) throws RemoteException {
+        if(client.getOwner() != null) {
+            return client.getOwner().execute(client.getOwnerSession(), Arrays.asList(Command.goTo(target))).get(0);
+        }
+        MUDActor current = this.getPlayerMUD(client);
+        String origin = client.getLocation();
+        String destination = current.call(mud -> mud.walkThing(origin, target, client.getUsername()));
+        if(destination == null) {
+            return Result.fail(Result.Status.NO_WAY);
+        }
+        client.setLocation(destination);
+        if(!destination.equals(origin)) {
+            current.publish(new Event(Event.Type.MOVED, client.getUsername(), destination,
+                "[" + client.getUsername() + "] has walked from [" + origin + "] to [" + destination + "]."), origin);
+        }
+        return Result.ok(destination);
+    }
 
+    // take an item only if it is there and is not another player
+    private Result pickUp(String item, Session client) throws RemoteException {
+        if(client.getOwner() != null) {
+            return client.getOwner().execute(client.getOwnerSession(), Arrays.asList(Command.pickUp(item))).get(0);
+        }
+        MUDActor current = this.getPlayerMUD(client);
+        String location = client.getLocation();
+        Result result = current.call(mud -> {
+            if(mud.hasPlayer(item)) {
+                return Result.fail(Result.Status.IS_PLAYER);
+            }
+            if(!mud.existsThing(location, item)) {
+                return Result.fail(Result.Status.NO_SUCH_ITEM);
+            }
+            mud.delThing(location, item);
+            return Result.ok(item);
+        });
+
+        if(result.isOk()) {
+            current.publish(new Event(Event.Type.PICKED_UP, client.getUsername(), location,
+                "[" + client.getUsername() + "] has picked up [" + item + "] at [" + location + "]."));
+            this.notice("\tUser [" + client.getUsername() + "] has picked up a(n) [" + item + 
+                        "] \n\t\t\tfrom location [" + location + "] in dungeon instance [" + client.getMUDName() +"].",false);
+        }
+        return result;
     }
 
-    // used when picking up items, to detect if we try to pick up another player
-    public boolean isUser(ClientImpl client, String item) {
-        MUD temp = this.getMUD(client.getMUDName());
-        if(temp.getPlayers().contains(item)) {
-            return true;
+    // queue depth and service times of every dungeon instance
+    public String dungeonStats() {
+        String stats = "\n\t|Dungeon statistics: ";
+        if(this.allMUD.isEmpty()) {
+            stats += "\n\t\t*No MUD games active.";
         }
-        return false;
+        for(MUDActor actor : this.allMUD.values()) {
+            stats += "\n\t\t├-> " + actor.stats();
+        }
+        stats += "\n\t|Events: " + this.events.stats();
+        stats += "\n\t|Log: " + this.log.stats();
+        if(this.text != null) {
+            stats += "\n\t|Text: " + this.text.stats();
+        }
+        if(this.journal != null) {
+            stats += "\n\t|Journal: " + this.journal.stats();
+        }
+        if(this.hibernation != null) {
+            stats += "\n\t|Hibernation: " + this.asleep.size() + " asleep, " + this.hibernation.stats();
+        }
+        return stats;
     }
 
-    private void setServerLock(boolean flag) {
-        this.serverLock = flag;
+    // everything measured on the server: each remote method, then every dungeon
+    public String serverStats() {
+        String stats = "\n\t|Remote calls (latency, errors, mean payload): ";
+        stats += this.rpc.snapshot();
+        return stats + this.dungeonStats();
     }
 
     private void setMaxPlayers(int maxPlayers) {
@@ -405,7 +1013,7 @@ public class ServerImpl implements ServerInterface {
 
     // find and return a mud with a given name if it exists
     // also used on the Client side when a client forcefully exits out of the game
-    private MUD getMUD(String name) {
+    private MUDActor getMUD(String name) {
         if(this.allMUD.containsKey(name)) {
             return this.allMUD.get(name);
         } else {
@@ -415,19 +1023,269 @@ public class ServerImpl implements ServerInterface {
     }
 
 
+    // find the session of a logged in player
+    private Session getSession(long id) throws RemoteException {
+        Session session = this.sessions.get(id);
+        if(session == null) {
+            throw new RemoteException("Error, invalid session. Log in again.");
+        }
+        return session;
+    }
+
+    // the dungeon instance the player is currently in
+    private MUDActor getPlayerMUD(Session session) throws RemoteException {
+        MUDActor current = this.getMUD(session.getMUDName());
+        if(current == null) {
+            throw new RemoteException("Error, you are not in a dungeon instance.");
+        }
+        return current;
+    }
+
+    // create a session with a fresh, unused, non zero id
+    private Session createSession(String username, ClientInterface listener, NodeInterface home) {
+        while(true) {
+            long id = this.sessionIds.nextLong();
+            if(id == 0) {
+                continue;
+            }
+            Session session = new Session(id, username, listener, home);
+            if(this.sessions.putIfAbsent(id, session) == null) {
+                return session;
+            }
+        }
+    }
+
     ServerImpl(int port_reg, int port_serv, int maxMUD, int maxPlayers, int maxInventory) throws RemoteException {
+        this(maxMUD, maxPlayers, maxInventory);
+        // create the registry connection, or use the one another node on this host has created
+        Registry registry;
+        try {
+            registry = LocateRegistry.createRegistry(port_reg);
+        } catch(ExportException e) {
+            if(System.getProperty("mud.node") == null) {
+                throw e;
+            }
+            registry = LocateRegistry.getRegistry(port_reg);
+        }
+
+        // create the server
+        createServer(port_reg, port_serv, registry);
+
+        // System.out.println("Server created successfully");
+    }
+
+    // a server which is not exported, called directly in the same process (used by the benchmarks)
+    ServerImpl(int maxMUD, int maxPlayers, int maxInventory) {
         System.out.println("");
-        // create the registry connection
-        LocateRegistry.createRegistry(port_reg);
+        this.log = new ServerLog(System.getProperty("mud.log"), Long.getLong("mud.log.size", 10 * 1024 * 1024));
 
         // set all variables to the passed args
         this.setMaxPlayers(maxPlayers);
+        this.players = new PlayerRegistry(maxPlayers);
         this.setMaxMUDs(maxMUD);
         this.setInventoryLimit(maxInventory);
 
-        // create the server
-        createServer(port_reg, port_serv);
+        // one worker per core, every mud instance is spread over them
+        this.events = new EventDispatcher(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread worker = new Thread(runnable, "mud-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+
+        String journalDir = System.getProperty("mud.journal");
+        if(journalDir != null) {
+            this.openJournal(new File(journalDir));
+        }
+        Long idle = Long.getLong("mud.hibernate");
+        if(idle != null) {
+            this.openHibernation(new File(System.getProperty("mud.hibernate.dir", "hibernate")), idle);
+        }
+    }
 
-        // System.out.println("Server created successfully");
+    // bring back the muds saved in the journal, then journal every change from now on
+    private void openJournal(File dir) {
+        try {
+            Map<String, MUD> recovered = Journal.recover(dir);
+            this.journal = new Journal(dir, Long.getLong("mud.journal.commit", 5));
+            for(Map.Entry<String, MUD> entry : recovered.entrySet()) {
+                MUD mud = entry.getValue();
+                mud.evictPlayers(); // nobody is connected after a restart
+                mud.setJournal(this.journal, entry.getKey());
+                this.addInstance(entry.getKey(), mud);
+                this.notice("\tRecovered the MUD named [" + entry.getKey() + "].", false);
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException("Error, cannot recover the journal in " + dir + ": " + e.getMessage(), e);
+        }
+        // the recovered state goes into the snapshots right away, before anybody plays
+        this.snapshot();
+
+        long interval = Long.getLong("mud.snapshot.interval", 60);
+        this.snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread saver = new Thread(runnable, "mud-snapshot");
+            saver.setDaemon(true);
+            return saver;
+        });
+        this.snapshots.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // start a new journal segment, save every mud and drop the segments the snapshots now cover
+    private void snapshot() {
+        try {
+            long segment = this.journal.roll();
+            for(MUDActor actor : this.allMUD.values()) {
+                try {
+                    this.journal.snapshot(actor.getName(), actor.call(MUD::snapshot));
+                } catch(MUDActor.RetiredException e) {
+                    // it has gone to disk, its snapshot was saved then
+                }
+            }
+            this.journal.truncate(segment);
+        } catch(IOException e) {
+            this.notice("\tError, cannot save the muds: " + e.getMessage(), true);
+        }
+    }
+
+    // take back the muds saved by the last run, then hibernate every mud idle for that many seconds;
+    // a mud the journal has brought back is newer than its file
+    private void openHibernation(File dir, long idle) {
+        try {
+            this.hibernation = new Hibernation(dir);
+        } catch(IOException e) {
+            throw new IllegalStateException("Error, cannot use " + dir + " for hibernation: " + e.getMessage(), e);
+        }
+        for(String name : this.hibernation.list()) {
+            if(this.allMUD.containsKey(name)) {
+                this.hibernation.delete(name);
+                continue;
+            }
+            try {
+                this.asleep.put(name, this.hibernation.maxPlayers(name));
+            } catch(IOException e) {
+                this.notice("\tError, cannot read the hibernated MUD [" + name + "]: " + e.getMessage(), true);
+            }
+        }
+
+        long idleNanos = TimeUnit.SECONDS.toNanos(idle);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread sweeper = new Thread(runnable, "mud-hibernate");
+            sweeper.setDaemon(true);
+            return sweeper;
+        });
+        long interval = Math.max(1, idle / 4);
+        this.sweeper.scheduleWithFixedDelay(() -> this.sweep(idleNanos), interval, interval, TimeUnit.SECONDS);
+    }
+
+    // hibernate every mud nobody has been in for longer than the given time
+    private void sweep(long idleNanos) {
+        for(MUDActor actor : this.allMUD.values()) {
+            if(actor.playerCount() == 0 && actor.getQueue().isEmpty() && actor.idleNanos() > idleNanos) {
+                try {
+                    this.hibernate(actor);
+                } catch(RemoteException e) {
+                    this.notice("\tError, cannot hibernate the MUD [" + actor.getName() + "]: " + e.getMessage(), true);
+                }
+            }
+        }
+    }
+
+    // the mud without players which has been idle the longest, null if every mud is in use
+    private MUDActor idleMUD() {
+        MUDActor idlest = null;
+        for(MUDActor actor : this.allMUD.values()) {
+            if(actor.playerCount() == 0 && actor.getQueue().isEmpty()
+                    && (idlest == null || actor.idleNanos() > idlest.idleNanos())) {
+                idlest = actor;
+            }
+        }
+        return idlest;
+    }
+
+    // before another mud is held in memory, put the idlest one on disk if
+    // the limit is reached; if every mud is in use the limit is exceeded
+    // for a while rather than keeping players out of a mud which exists
+    private void makeRoom() throws RemoteException {
+        synchronized(this.allMUD) {
+            if(this.hibernation == null || this.allMUD.size() < this.maxMUDS) {
+                return;
+            }
+            MUDActor idlest = this.idleMUD();
+            if(idlest != null) {
+                this.hibernate(idlest);
+            }
+        }
+    }
+
+    /*
+     * Save a mud to disk and drop it from memory. The snapshot is taken by
+     * a command of the mud which also checks that nobody is in it and
+     * retires the actor, so whatever comes after it in the mailbox fails
+     * with a RetiredException and is tried again through wake(). False if
+     * somebody came in meanwhile or the file cannot be written.
+     */
+    private boolean hibernate(MUDActor actor) throws RemoteException {
+        synchronized(this.allMUD) {
+            String name = actor.getName();
+            if(this.allMUD.get(name) != actor) {
+                return false;
+            }
+            byte[] state = actor.call(mud -> {
+                if(!mud.getPlayers().isEmpty() || !actor.getQueue().isEmpty() || actor.getQueueDepth() > 0) {
+                    return null;
+                }
+                actor.retire();
+                return mud.snapshot();
+            });
+            if(state == null) {
+                return false;
+            }
+            try {
+                this.hibernation.write(name, state);
+                if(this.journal != null) {
+                    this.journal.snapshot(name, state);
+                }
+            } catch(IOException e) {
+                actor.revive();
+                this.notice("\tError, cannot hibernate the MUD [" + name + "]: " + e.getMessage(), true);
+                return false;
+            }
+            this.asleep.put(name, actor.getMaxPlayers());
+            this.allMUD.remove(name);
+            actor.setTickMillis(0); // stop its ticks and let the commands still in the mailbox fail
+            RpcMetrics.unregister("mud:type=Dungeon,name=" + ObjectName.quote(name));
+            this.notice("\tThe MUD named [" + name + "] is hibernating (" + state.length + " bytes).", false);
+            return true;
+        }
+    }
+
+    // the mud with the name, brought back from disk if it is hibernating; null if there is none
+    private MUDActor wake(String name) throws RemoteException {
+        MUDActor actor = this.allMUD.get(name);
+        if(actor != null && !actor.isRetired()) {
+            return actor;
+        }
+        synchronized(this.allMUD) {
+            // a mud which was going to disk has gone by now, or failed to
+            actor = this.allMUD.get(name);
+            if(actor != null || !this.asleep.containsKey(name)) {
+                return actor;
+            }
+            MUD mud;
+            try {
+                mud = this.hibernation.read(name);
+            } catch(IOException e) {
+                throw new RemoteException("Error, cannot wake the MUD [" + name + "]", e);
+            }
+            if(this.journal != null) {
+                mud.setJournal(this.journal, name);
+            }
+            this.makeRoom();
+            this.asleep.remove(name);
+            this.addInstance(name, mud);
+            this.hibernation.delete(name);
+            this.notice("\tThe MUD named [" + name + "] has woken up.", false);
+            return this.allMUD.get(name);
+        }
     }
-}
\ No newline at end of file
+}
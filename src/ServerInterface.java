@@ -3,28 +3,38 @@ import java.rmi.RemoteException;
 
 import java.util.List;
 
+/**
+ * Players are identified by the session id returned from playerLogIn.
+ * All the state about a player (name, dungeon, location) is kept on the
+ * server, so only the id has to be sent with each call.
+ */
 public interface ServerInterface extends Remote {
     void notice(String msg, boolean error) throws RemoteException;
     String menu() throws RemoteException;
     boolean isServerFull() throws RemoteException;
     String displayDungeon(String name) throws RemoteException;
 
-    boolean playerExists(ClientImpl client) throws RemoteException;
-    boolean playerLogIn(ClientImpl client) throws RemoteException;
-    boolean playerJoinDungeon(ClientImpl client, String mud_name) throws RemoteException;
-    void playerDisconnect(ClientImpl client) throws RemoteException;
+    boolean playerExists(String username) throws RemoteException;
+    long playerLogIn(String username, ClientInterface listener) throws RemoteException;
+    boolean playerJoinDungeon(long session, String mud_name) throws RemoteException;
+    void playerDisconnect(long session) throws RemoteException;
     boolean mudExists(String name) throws RemoteException;
     boolean spotForMUD() throws RemoteException;
-    void createDungeonInstance(String name, int num, ClientImpl client) throws RemoteException;
-    String setStartLocation(ClientImpl client) throws RemoteException;
-    String playerMove(ClientImpl client, String destination) throws RemoteException;
-    String locationInfo(ClientImpl client) throws RemoteException;
-    // void playerQuitDungeon(ClientImpl client) throws RemoteException;
-    void playerForceShutdown(ClientImpl client) throws RemoteException;
-    boolean itemExists(ClientImpl client, String item) throws RemoteException;
-    void itemPickedUp(ClientImpl client, String item) throws RemoteException;
+    void createDungeonInstance(String name, int num, long session) throws RemoteException;
+    String setStartLocation(long session) throws RemoteException;
+    String playerMove(long session, String destination) throws RemoteException;
+    String locationInfo(long session) throws RemoteException;
+    // void playerQuitDungeon(long session) throws RemoteException;
+    void playerForceShutdown(long session) throws RemoteException;
+    boolean itemExists(long session, String item) throws RemoteException;
+    void itemPickedUp(long session, String item) throws RemoteException;
     String listCurrentMUDs(boolean flag) throws RemoteException;
     String listCurrentPlayersServer() throws RemoteException;
     List<String> setPlayerInventory() throws RemoteException;
-    boolean isUser(ClientImpl client, String item) throws RemoteException;
-}
\ No newline at end of file
+    boolean isUser(long session, String item) throws RemoteException;
+    String dungeonStats() throws RemoteException;
+    String serverStats() throws RemoteException;
+
+    // run several commands in one round trip (see Command and Result)
+    List<Result> execute(long session, List<Command> commands) throws RemoteException;
+}
@@ -0,0 +1,195 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The log of the server. Threads only put their message in a ring buffer
+ * (no lock, no I/O, no allocation besides the message itself) and a
+ * background thread writes whatever has piled up in one go, either to the
+ * console or to a file which is rotated once it gets too big.
+ * If the writer cannot keep up and the buffer is full, new messages are
+ * dropped and counted instead of making the callers wait.
+ */
+class ServerLog implements Runnable {
+    private static final int CAPACITY = 8192;   // must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int ROTATED_FILES = 5; // how many old files are kept
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("'['dd/MM/yyyy HH:mm:ss'] '")
+                                                                     .withZone(ZoneId.systemDefault());
+
+    // a slot of the ring, reused over and over
+    private static class Record {
+        long time;
+        boolean error;
+        String msg;
+    }
+
+    private final Record[] ring = new Record[CAPACITY];
+    // sequence[i] is the number of the record in slot i plus 1 once it has been
+    // written, so the writer knows the slot is ready to be read
+    private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private final AtomicLong claimed = new AtomicLong();    // records handed out to producers
+    private volatile long consumed = 0;    // records the writer is done with
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0;
+
+    private final String file;  // null means the console
+    private final long maxBytes;
+    private Writer out;
+    private long bytes;
+
+    private final Thread writer;
+    private volatile boolean sleeping = false;
+    private volatile boolean closed = false;
+
+    // timestamps only change once a second, so the last one is kept
+    private long lastSecond = -1;
+    private String lastStamp = "";
+
+    ServerLog(String file, long maxBytes) {
+        for(int i = 0; i < CAPACITY; i++) {
+            this.ring[i] = new Record();
+        }
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.writer = new Thread(this, "mud-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public void append(String msg, boolean error) {
+        long n;
+        do {
+            n = this.claimed.get();
+            if(n - this.consumed >= CAPACITY) {
+                this.dropped.increment();
+                return;
+            }
+        } while(!this.claimed.compareAndSet(n, n + 1));
+
+        Record record = this.ring[(int)(n & MASK)];
+        record.time = System.currentTimeMillis();
+        record.error = error;
+        record.msg = msg;
+        this.sequence.set((int)(n & MASK), n + 1);    // publishes the fields above
+
+        if(this.sleeping) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    public void run() {
+        StringBuilder batch = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        while(!this.closed) {
+            if(!this.drain(batch, errors)) {
+                this.sleeping = true;
+                if(this.sequence.get((int)(this.consumed & MASK)) != this.consumed + 1) {
+                    LockSupport.parkNanos(10_000_000L);
+                }
+                this.sleeping = false;
+            }
+        }
+    }
+
+    // write everything that is ready; false if there was nothing
+    private synchronized boolean drain(StringBuilder batch, StringBuilder errors) {
+        long n = this.consumed;
+        while(this.sequence.get((int)(n & MASK)) == n + 1) {
+            Record record = this.ring[(int)(n & MASK)];
+            StringBuilder target = record.error && this.file == null ? errors : batch;
+            target.append(this.stamp(record.time)).append(record.msg).append('\n');
+            record.msg = null;
+            n++;
+        }
+        long count = n - this.consumed;
+        this.consumed = n;
+
+        long lost = this.dropped.sum();
+        if(lost != this.droppedReported) {
+            batch.append(this.stamp(System.currentTimeMillis())).append("\t")
+                 .append(lost - this.droppedReported).append(" log messages were dropped.\n");
+            this.droppedReported = lost;
+        }
+        if(batch.length() == 0 && errors.length() == 0) {
+            return false;
+        }
+
+        this.write(batch, System.out);
+        this.write(errors, System.err);
+        this.written.add(count);
+        batch.setLength(0);
+        errors.setLength(0);
+        return true;
+    }
+
+    private String stamp(long time) {
+        long second = time / 1000;
+        if(second != this.lastSecond) {
+            this.lastSecond = second;
+            this.lastStamp = FORMAT.format(Instant.ofEpochMilli(time));
+        }
+        return this.lastStamp;
+    }
+
+    private void write(StringBuilder text, PrintStream console) {
+        if(text.length() == 0) {
+            return;
+        }
+        if(this.file == null) {
+            console.print(text);
+            console.flush();
+            return;
+        }
+        try {
+            if(this.out == null || this.bytes >= this.maxBytes) {
+                this.rotate();
+            }
+            this.out.write(text.toString());
+            this.out.flush();
+            this.bytes += text.length();
+        } catch(IOException e) {
+            System.err.println("Error, cannot write the log: " + e.getMessage());
+            System.err.print(text);
+        }
+    }
+
+    // server.log -> server.log.1 -> server.log.2 ... and start a new server.log
+    private void rotate() throws IOException {
+        if(this.out != null) {
+            this.out.close();
+            new File(this.file + "." + ROTATED_FILES).delete();
+            for(int i = ROTATED_FILES - 1; i >= 1; i--) {
+                new File(this.file + "." + i).renameTo(new File(this.file + "." + (i + 1)));
+            }
+            new File(this.file).renameTo(new File(this.file + ".1"));
+        }
+        File current = new File(this.file);
+        this.bytes = current.length();
+        this.out = new BufferedWriter(new FileWriter(current, true));
+    }
+
+    // write out what is left; used when the server shuts down
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        this.drain(new StringBuilder(), new StringBuilder());
+    }
+
+    public String stats() {
+        return "log messages written " + this.written.sum() + ", dropped " + this.dropped.sum();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Server side state of a logged in player. The client only gets the id
+ * of its session and sends that with every call, the server is the one
+ * which knows where the player is.
+ */
+class Session {
+    private final long id;
+    private final String username;
+    private final ClientInterface listener; // where events for the player are pushed (may be null)
+    private final NodeInterface home;   // for a player of another node, only here to play in one of our dungeons, that node
+
+    // fields are changed by the RMI thread serving the player's last call
+    // and read by the next one, which may be a different thread
+    private volatile String mudName = "";
+    private volatile String location = "";
+
+    // set while the player plays in a dungeon owned by another node: calls
+    // about the dungeon are passed on to that node, with the session it
+    // gave the player there
+    private volatile NodeInterface owner;
+    private volatile long ownerSession;
+
+    Session(long id, String username, ClientInterface listener) {
+        this(id, username, listener, null);
+    }
+
+    Session(long id, String username, ClientInterface listener, NodeInterface home) {
+        this.id = id;
+        this.username = username;
+        this.listener = listener;
+        this.home = home;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public ClientInterface getListener() {
+        return this.listener;
+    }
+
+    public String getMUDName() {
+        return this.mudName;
+    }
+
+    public String getLocation() {
+        return this.location;
+    }
+
+    public void setMUDName(String name) {
+        this.mudName = name;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public boolean isVisitor() {
+        return this.home != null;
+    }
+
+    public NodeInterface getHome() {
+        return this.home;
+    }
+
+    public NodeInterface getOwner() {
+        return this.owner;
+    }
+
+    public long getOwnerSession() {
+        return this.ownerSession;
+    }
+
+    public void setOwner(NodeInterface owner, long ownerSession) {
+        this.ownerSession = ownerSession;
+        this.owner = owner;
+    }
+
+    // true if the player is currently inside a dungeon instance
+    public boolean isPlaying() {
+        return !this.mudName.equals("");
+    }
+}
@@ -0,0 +1,463 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A plain text front end to the server, next to RMI or instead of it. A
+ * player sends one command per line, the same ones the RMI client takes,
+ * so telnet or netcat is enough to play. One thread with a selector does
+ * all the reading and writing: an idle connection costs a socket and a few
+ * small objects instead of a thread. Complete lines are run on the server
+ * by a pool, one at a time per connection and in order, because a command
+ * may wait for a dungeon. Replies and events are queued on the connection
+ * and written by the selector thread as soon as the socket takes them.
+ */
+class TextServer implements Runnable {
+    private static final int MAX_LINE = 1024;   // a longer line closes the connection
+    private static final int MAX_PENDING = 1 << 20; // bytes queued for a client which does not read them
+
+    private final ServerImpl server;
+    private final ServerInterface calls;    // the server through the same metrics as the RMI calls
+    private final Selector selector;
+    private final ServerSocketChannel socket;
+    private final ExecutorService pool;
+    private final ByteBuffer input = ByteBuffer.allocateDirect(64 * 1024);  // shared, only the selector thread reads
+    private final AtomicInteger connections = new AtomicInteger();
+
+    TextServer(ServerImpl server, int port) throws IOException {
+        this.server = server;
+        this.calls = server.instrumented();
+        this.selector = Selector.open();
+        this.socket = ServerSocketChannel.open();
+        this.socket.bind(new InetSocketAddress(port));
+        this.socket.configureBlocking(false);
+        this.socket.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.pool = Executors.newFixedThreadPool(Integer.getInteger("mud.text.threads", Math.max(4, 2 * Runtime.getRuntime().availableProcessors())), runnable -> {
+            Thread worker = new Thread(runnable, "mud-text");
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    public void start() {
+        new Thread(this, "mud-text-selector").start();
+        this.server.notice("\tText server listening on port " + this.socket.socket().getLocalPort(), false);
+    }
+
+    public void run() {
+        while(this.socket.isOpen()) {
+            try {
+                this.selector.select();
+                for(SelectionKey key : this.selector.selectedKeys()) {
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    Connection connection = (Connection)key.attachment();
+                    try {
+                        if(key.isReadable()) {
+                            connection.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch(IOException | CancelledKeyException e) {
+                        connection.close();
+                    } catch(RuntimeException e) {
+                        // only this connection is lost, the selector goes on for the others
+                        this.server.notice("\tError, text connection: " + e, true);
+                        connection.close();
+                    }
+                }
+                this.selector.selectedKeys().clear();
+            } catch(IOException e) {
+                this.server.notice("\tError, text server: " + e.getMessage(), true);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.socket.accept();
+        if(channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        this.connections.incrementAndGet();
+        connection.write("Enter a username: ");
+    }
+
+    public String stats() {
+        return "text connections " + this.connections.get();
+    }
+
+    /**
+     * One player. The selector thread reads lines and writes replies, the
+     * pool runs the commands; the events of the dungeon come in through
+     * ClientInterface like for an RMI client, only in the same process.
+     */
+    private class Connection implements ClientInterface, Runnable {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // the line being read, only used by the selector thread
+        private byte[] line = new byte[64];
+        private int length = 0;
+
+        // commands run in order, by one pool thread at a time
+        private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // replies and events waiting to be written
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        // the player, changed by the commands (onAdmitted only sets the session, the rest it leaves to a command)
+        private String username;
+        private volatile long session;
+        private List<String> inventory;
+        private boolean left = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // split what has arrived into lines and queue them as commands
+        void read() throws IOException {
+            ByteBuffer buffer = TextServer.this.input;
+            buffer.clear();
+            if(this.channel.read(buffer) < 0) {
+                this.close();
+                return;
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if(b == '\n') {
+                    String text = new String(this.line, 0, this.length, StandardCharsets.UTF_8).trim();
+                    this.length = 0;
+                    this.submit(() -> this.handle(text));
+                } else if(this.length == MAX_LINE) {
+                    this.close();
+                    return;
+                } else {
+                    if(this.length == this.line.length) {
+                        this.line = Arrays.copyOf(this.line, Math.min(MAX_LINE, 2 * this.length));
+                    }
+                    this.line[this.length++] = b;
+                }
+            }
+        }
+
+        // write what the socket takes, stop asking to write once everything is out
+        void flush() throws IOException {
+            ByteBuffer buffer;
+            while((buffer = this.output.peek()) != null) {
+                this.channel.write(buffer);
+                if(buffer.hasRemaining()) {
+                    return;
+                }
+                this.output.poll();
+                this.pending.addAndGet(-buffer.capacity());
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+            this.writing.set(false);
+            // something may have been queued between the last poll and now
+            if(!this.output.isEmpty() && this.writing.compareAndSet(false, true)) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // queue text for the client, from any thread
+        void write(String text) {
+            if(this.closed.get()) {
+                return;
+            }
+            byte[] bytes = text.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+            if(this.pending.addAndGet(bytes.length) > MAX_PENDING) {
+                this.close();   // it does not read what it is sent
+                return;
+            }
+            this.output.offer(ByteBuffer.wrap(bytes));
+            if(this.writing.compareAndSet(false, true)) {
+                try {
+                    this.key.interestOpsOr(SelectionKey.OP_WRITE);
+                    TextServer.this.selector.wakeup();
+                } catch(IllegalStateException e) {
+                    // closed in the meantime
+                }
+            }
+        }
+
+        void writeLine(String text) {
+            this.write(text + "\n");
+        }
+
+        // the player is gone; it leaves the server after the commands queued before
+        void close() {
+            if(!this.closed.compareAndSet(false, true)) {
+                return;
+            }
+            TextServer.this.connections.decrementAndGet();
+            this.key.cancel();
+            try {
+                this.channel.close();
+            } catch(IOException e) {
+                // closed anyway
+            }
+            this.submit(this::leave);
+        }
+
+        private void submit(Runnable command) {
+            this.commands.offer(command);
+            if(this.scheduled.compareAndSet(false, true)) {
+                TextServer.this.pool.execute(this);
+            }
+        }
+
+        public void run() {
+            Runnable command;
+            try {
+                while((command = this.commands.poll()) != null) {
+                    command.run();
+                }
+            } finally {
+                this.scheduled.set(false);
+            }
+            if(!this.commands.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+                TextServer.this.pool.execute(this);
+            }
+        }
+
+        private void handle(String line) {
+            if(line.isEmpty()) {
+                return;
+            }
+            try {
+                if(this.username == null) {
+                    this.logIn(line);
+                } else {
+                    this.command(line);
+                }
+            } catch(RemoteException e) {
+                this.writeLine(e.getMessage());
+            } catch(RuntimeException e) {
+                // a bug in one command must not take the connection (or the others) with it
+                server.notice("\tError, text command [" + line + "] of user [" + this.username + "] failed: " + e, true);
+                this.writeLine("Error, the command failed.");
+            }
+        }
+
+        // the first line is the name, the log in and the inventory go in one batch
+        private void logIn(String name) throws RemoteException {
+            String username = name.replace(" ", "");
+            List<Result> results = calls.execute(0, Arrays.asList(Command.logIn(username, this), Command.inventory()));
+            Result result = results.get(0);
+            if(result.getStatus() == Result.Status.NAME_TAKEN) {
+                this.write("A user with this name already exists. Choose a different one.\nEnter a username: ");
+                return;
+            }
+            this.username = username;
+            if(result.isOk()) {
+                this.session = result.getNumber();
+                this.inventory = results.get(1).getList();
+                this.writeLine("You have joined the server.");
+                this.writeLine(calls.menu());
+            } else {
+                this.writeLine("Server full. You have been added to the waiting list.");
+                this.writeLine(result.getText());
+            }
+        }
+
+        private void command(String line) throws RemoteException {
+            String[] words = line.split("\\s+");
+            String command = words[0].toLowerCase();
+            if(command.equals("/disconnect") || command.equals("/quit")) {
+                this.writeLine("Leaving the server. . .");
+                this.leave();
+                this.close();
+                return;
+            }
+            if(this.session == 0) {
+                this.writeLine("You are still waiting to get in.");
+                return;
+            }
+            String arg = words.length > 1 ? words[1] : "";
+            switch(command) {
+                case "/create":
+                    if(arg.isEmpty()) {
+                        this.writeLine("Error, give the dungeon a name.");
+                        break;
+                    }
+                    this.create(arg, words.length > 2 ? words[2] : "2");
+                    break;
+                case "/join":
+                    this.join(arg);
+                    break;
+                case "/move":
+                    if(!arg.matches("north|east|south|west")) {
+                        this.writeLine("Error, wrong direction.");
+                        break;
+                    }
+                    List<Result> results = calls.execute(this.session, Arrays.asList(Command.move(arg), Command.look()));
+                    this.writeLine(results.get(1).isOk() ? results.get(1).getText() : "Error, you are not in a dungeon instance.");
+                    break;
+                case "/goto":
+                    List<Result> walked = calls.execute(this.session, Arrays.asList(Command.goTo(arg), Command.look()));
+                    if(walked.get(0).isOk()) {
+                        this.writeLine("Your new location is [" + walked.get(0).getText() + "].");
+                        this.writeLine(walked.get(1).getText());
+                    } else {
+                        this.writeLine("Error, there is no way to [" + arg + "].");
+                    }
+                    break;
+                case "/look":
+                    this.writeLine(calls.locationInfo(this.session));
+                    break;
+                case "/pick":
+                    this.pickUp(arg);
+                    break;
+                case "/exit":
+                    calls.playerForceShutdown(this.session);
+                    this.inventory = calls.setPlayerInventory();
+                    this.writeLine("You have left the dungeon.");
+                    break;
+                case "/inv":
+                case "/inventory":
+                    this.writeLine(String.join(" ", this.inventory));
+                    break;
+                case "/1":
+                    this.writeLine(calls.listCurrentMUDs(false));
+                    break;
+                case "/2":
+                    this.writeLine(calls.listCurrentPlayersServer());
+                    break;
+                case "/stats":
+                    this.writeLine(calls.dungeonStats());
+                    break;
+                case "/admin":
+                    this.writeLine(calls.serverStats());
+                    break;
+                case "/menu":
+                case "/help":
+                    this.writeLine(calls.menu());
+                    break;
+                default:
+                    this.writeLine("Error, command does not exist.");
+            }
+        }
+
+        // /create <name> [maximum number of players]
+        private void create(String name, String max) throws RemoteException {
+            int num = 2;    // default
+            try {
+                num = Math.abs(Integer.parseInt(max));
+            } catch(NumberFormatException e) {
+                this.writeLine("Error, wrong input.");
+                return;
+            }
+            Result result = calls.execute(this.session, Arrays.asList(Command.createDungeon(name, num))).get(0);
+            if(result.getStatus() == Result.Status.DUNGEON_EXISTS) {
+                this.writeLine("Error, MUD game with that name already exists.");
+            } else if(result.getStatus() == Result.Status.NO_SPOT_FOR_DUNGEON) {
+                this.writeLine("Error, maximum number of MUDs created.");
+            } else {
+                this.writeLine("Dungeon created.");
+            }
+        }
+
+        private void join(String name) throws RemoteException {
+            Result result = calls.execute(this.session, Arrays.asList(Command.joinDungeon(name))).get(0);
+            if(result.isOk()) {
+                this.writeLine("You have successfully joined " + name + ". Start location has been set to [" + result.getText() + "].");
+            } else if(result.getStatus() == Result.Status.DUNGEON_FULL) {
+                this.writeLine("The dungeon is full. You have been added to its queue.");
+                this.writeLine(result.getText());
+            } else {
+                this.writeLine("Error, no instance matches the given name.");
+            }
+        }
+
+        private void pickUp(String item) throws RemoteException {
+            int free = this.inventory.indexOf("[ ]");
+            if(free < 0) {
+                this.writeLine("You do not have free space in your inventory.");
+                return;
+            }
+            Result result = calls.execute(this.session, Arrays.asList(Command.pickUp(item))).get(0);
+            if(result.isOk()) {
+                this.inventory.set(free, "[" + item + "]");
+                this.writeLine("Item [" + item + "] picked up.");
+            } else if(result.getStatus() == Result.Status.IS_PLAYER) {
+                this.writeLine("Fellow adventurers prefer to not be picked up.");
+            } else {
+                this.writeLine("Looking around, you cannot seem to find such an item.");
+            }
+        }
+
+        // take the player out of its dungeon and off the server, or out of the queue
+        private void leave() {
+            if(this.left || this.username == null) {
+                return;
+            }
+            this.left = true;
+            try {
+                long session = this.session;
+                if(session == 0) {
+                    calls.execute(0, Arrays.asList(Command.leaveQueue(this.username, this)));
+                    session = this.session; // let in just now
+                }
+                if(session != 0) {
+                    calls.playerForceShutdown(session);
+                    calls.playerDisconnect(session);
+                }
+            } catch(RemoteException e) {
+                server.notice("\tError, cannot disconnect user [" + this.username + "]: " + e.getMessage(), true);
+            }
+        }
+
+        public void onEvents(List<Event> events) {
+            for(Event event : events) {
+                this.writeLine("* " + event);
+            }
+        }
+
+        // the inventory is set among the commands of the player, which are the only ones to use it
+        public void onAdmitted(long session) {
+            this.session = session;
+            this.submit(() -> {
+                try {
+                    this.inventory = calls.setPlayerInventory();
+                } catch(RemoteException e) {
+                    server.notice("\tError, cannot get the inventory of user [" + this.username + "]: " + e.getMessage(), true);
+                }
+                this.writeLine("You have joined the server.");
+            });
+        }
+
+        public void onDungeonAdmitted(String mudName, String location) {
+            this.writeLine("You have been let in to " + mudName + ". Start location has been set to [" + location + "].");
+        }
+    }
+}
@@ -6,9 +6,10 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
-import java.util.Iterator;
 
-// Represents a location in the MUD (a vertex in the graph).
+// Represents a location in the MUD (a vertex in the graph) while the
+// world files are read; WorldTemplate packs them into its tables, which
+// are what describe a location.
 class Vertex
 {
     public String _name;             // Vertex name
@@ -25,26 +26,4 @@ class Vertex
 	_routes = new HashMap<String,Edge>(); // Not synchronised
 	_things = new Vector<String>();       // Synchronised
     }
-
-    public String toString()
-    {
-	String summary = "\n";
-	summary += _msg + "\n";
-	Iterator iter = _routes.keySet().iterator();
-	String direction;
-	while (iter.hasNext()) {
-	    direction = (String)iter.next();
-	    summary += "To the " + direction + " there is " + ((Edge)_routes.get( direction ))._view + "\n";
-	}
-	iter = _things.iterator();
-	if (iter.hasNext()) {
-	    summary += "You can see: ";
-	    do {
-		summary += iter.next() + " ";
-	    } while (iter.hasNext());
-	}
-	summary += "\n\n";
-	return summary;
-    }
 }
-
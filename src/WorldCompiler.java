@@ -0,0 +1,36 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compiles the text files of a world (edges, messages, things) into a
+ * binary image which the server maps into memory instead of parsing
+ * (see WorldTemplate for the layout). Start the server with
+ * -Dmud.world=<image> to use it.
+ *
+ * Usage: java WorldCompiler <edgesfile> <messagesfile> <thingsfile> <imagefile>
+ */
+public class WorldCompiler {
+    public static void main(String[] args) throws IOException {
+        if(args.length != 4) {
+            System.err.println("Usage: java WorldCompiler <edgesfile> <messagesfile> <thingsfile> <imagefile>");
+            return;
+        }
+
+        long start = System.nanoTime();
+        WorldTemplate world = WorldTemplate.parse(args[0], args[1], args[2]);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[3]), 1 << 16))) {
+            world.write(out);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        // read it back, so that a broken image is found now and not by the server
+        WorldTemplate image = WorldTemplate.map(args[3]);
+        if(image.size() != world.size() || !image.startLocation().equals(world.startLocation())) {
+            System.err.println("Error, the image " + args[3] + " does not match the files.");
+            return;
+        }
+        System.out.println("Compiled " + world.size() + " vertices into " + args[3] + " in " + millis + " ms.");
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Reads the text files of a world in parallel. A file is cut into
+ * chunks of whole lines which are read and tokenized on the fork-join
+ * pool at the same time, then the parsed lines are handed back in the
+ * order of the file so that building the graph from them gives exactly
+ * what reading the file line by line would (vertex ids, the start
+ * location being the first line of the messages, later lines winning).
+ * Bad lines are reported with their file and line number.
+ */
+class WorldLoader {
+    private static final int CHUNK = 4 << 20;   // bytes of a chunk, roughly
+    private static final int PROBE = 4096;      // bytes read at a time to find the end of a line
+
+    // what a line of each file must hold
+    enum Kind {
+        EDGES(3),       // source direction destination message...
+        MESSAGES(2),    // location message...
+        THINGS(2);      // location thing...
+
+        final int minTokens;
+
+        Kind(int minTokens) {
+            this.minTokens = minTokens;
+        }
+    }
+
+    // the lines of one chunk, with the problems found (line numbers counted from the chunk)
+    private static class Chunk {
+        final List<String[]> records = new ArrayList<>();
+        final List<Integer> badLines = new ArrayList<>();
+        final List<String> problems = new ArrayList<>();
+        int lines = 0;
+    }
+
+    // read the three files of a world at the same time
+    static List<List<String[]>> readAll(String edgesfile, String messagesfile, String thingsfile) {
+        CompletableFuture<List<String[]>> messages = CompletableFuture.supplyAsync(() -> read(messagesfile, Kind.MESSAGES));
+        CompletableFuture<List<String[]>> things = CompletableFuture.supplyAsync(() -> read(thingsfile, Kind.THINGS));
+        List<String[]> edges = read(edgesfile, Kind.EDGES);
+        List<List<String[]>> all = new ArrayList<>();
+        all.add(edges);
+        all.add(messages.join());
+        all.add(things.join());
+        return all;
+    }
+
+    /**
+     * The parsed lines of a file, in order:
+     * EDGES gives {source, direction, destination, message},
+     * MESSAGES gives {location, message} and
+     * THINGS gives {location, thing, thing, ...}.
+     * Messages are the rest of the line, every word followed by a space.
+     */
+    static List<String[]> read(String file, Kind kind) {
+        try(FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long[] bounds = bounds(channel);
+            // a parallel stream runs on the common fork-join pool and keeps the order of the chunks
+            List<Chunk> parsed = IntStream.range(0, bounds.length - 1).parallel()
+                .mapToObj(i -> parse(channel, bounds[i], bounds[i + 1], kind))
+                .collect(Collectors.toList());
+
+            List<String[]> records = new ArrayList<>();
+            int firstLine = 1;
+            for(Chunk chunk : parsed) {
+                records.addAll(chunk.records);
+                for(int i = 0; i < chunk.problems.size(); i++) {
+                    System.err.println(file + ":" + (firstLine + chunk.badLines.get(i)) + ": " + chunk.problems.get(i));
+                }
+                firstLine += chunk.lines;
+            }
+            return records;
+        } catch(IOException | UncheckedIOException e) {
+            System.err.println("Error, cannot read " + file + "\n" + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    // where the chunks start: 0, the byte after a new line near every CHUNK bytes, and the size
+    private static long[] bounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(PROBE);
+        for(long at = CHUNK; at < size; at += CHUNK) {
+            long previous = bounds.get(bounds.size() - 1);
+            long end = Math.max(at, previous);
+            long found = -1;
+            while(found < 0 && end < size) {
+                probe.clear();
+                int n = channel.read(probe, end);
+                if(n <= 0) {
+                    break;
+                }
+                for(int i = 0; i < n; i++) {
+                    if(probe.get(i) == '\n') {
+                        found = end + i + 1;
+                        break;
+                    }
+                }
+                end += n;
+            }
+            if(found < 0 || found >= size) {
+                break;
+            }
+            if(found > previous) {
+                bounds.add(found);
+                at = found;
+            }
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static Chunk parse(FileChannel channel, long from, long to, Kind kind) {
+        Chunk chunk = new Chunk();
+        ByteBuffer bytes = ByteBuffer.allocate((int)(to - from));
+        try {
+            while(bytes.hasRemaining()) {
+                if(channel.read(bytes, from + bytes.position()) < 0) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String text = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8);
+
+        // the same lines as BufferedReader.readLine: ended by \n, \r or \r\n
+        int start = 0;
+        int length = text.length();
+        while(start < length) {
+            int end = start;
+            while(end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+                end++;
+            }
+            line(text.substring(start, end), kind, chunk);
+            if(end < length && text.charAt(end) == '\r' && end + 1 < length && text.charAt(end + 1) == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
+        return chunk;
+    }
+
+    private static void line(String line, Kind kind, Chunk chunk) {
+        int number = chunk.lines++;
+        StringTokenizer st = new StringTokenizer(line);
+        if(st.countTokens() < kind.minTokens) {
+            chunk.badLines.add(number);
+            chunk.problems.add("Skipping ill-formatted line " + line);
+            return;
+        }
+        switch(kind) {
+            case EDGES:
+                String source = st.nextToken();
+                String dir = st.nextToken();
+                String dest = st.nextToken();
+                if(Direction.parse(dir) == null) {
+                    chunk.badLines.add(number);
+                    chunk.problems.add("Skipping line with unknown direction " + line);
+                    return;
+                }
+                chunk.records.add(new String[] { source, dir, dest, rest(st) });
+                break;
+            case MESSAGES:
+                String loc = st.nextToken();
+                chunk.records.add(new String[] { loc, rest(st) });
+                break;
+            case THINGS:
+                String[] record = new String[st.countTokens()];
+                for(int i = 0; i < record.length; i++) {
+                    record[i] = st.nextToken();
+                }
+                chunk.records.add(record);
+                break;
+        }
+    }
+
+    // the remaining words, each followed by a space (as the messages have always been built)
+    private static String rest(StringTokenizer st) {
+        StringBuilder msg = new StringBuilder();
+        while(st.hasMoreTokens()) {
+            msg.append(st.nextToken()).append(' ');
+        }
+        return msg.toString();
+    }
+}
@@ -0,0 +1,648 @@
+/***********************************************************************
+ * cs3524.solutions.mud.WorldTemplate
+ ***********************************************************************/
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The graph of a MUD as read from its files. The files are parsed once
+ * and the template is shared by every instance created from them; it is
+ * never changed after loading, so it can be read by any thread. The
+ * things each instance adds, removes or moves are kept by the MUD itself.
+ *
+ * While loading, the files are read into Vertex and Edge objects which
+ * are then packed into tables indexed by vertex id and thrown away:
+ * - the routes of vertex v are the entries firstEdge[v] .. firstEdge[v+1]-1
+ *   of edgeDir (a Direction ordinal), edgeDest and edgeView;
+ * - every message, view and thing is stored once in a string table and
+ *   referred to by its index;
+ * - names are found through an open addressing table of vertex ids.
+ * A location then costs a few ints instead of a Vertex with its own
+ * HashMap, Vector and Edge objects.
+ *
+ * The tables can also be written to a compiled image (WorldCompiler)
+ * and mapped back into memory as they are, without any parsing.
+ */
+public class WorldTemplate
+{
+    // every template loaded so far, keyed by its files
+    private static final Map<String,WorldTemplate> templates = new ConcurrentHashMap<String,WorldTemplate>();
+
+    // used only while loading
+    private Map<String,Vertex> vertexMap = new LinkedHashMap<String,Vertex>();
+    private String _startLocation = "";
+
+    // the files it was read from, so that it can be found again after a restart
+    private final String edgesfile;
+    private final String messagesfile;
+    private final String thingsfile;
+
+    private int size;                // number of vertices
+    private IntBuffer nameId;        // vertex id -> string id of its name
+    private IntBuffer index;         // open addressing table of vertex id + 1 (0 is empty)
+    private String[] strings;        // names, messages, views and things, each stored once
+    private IntBuffer stringStart;   // image only: string id -> offset of its bytes; null if read from text
+    private ByteBuffer stringBytes;  // image only: the UTF-8 bytes of every string
+    private IntBuffer message;       // vertex id -> string id of its message
+    private IntBuffer firstEdge;     // vertex id -> first edge; firstEdge[size] is the number of edges
+    private ByteBuffer edgeDir;      // edge -> Direction ordinal
+    private IntBuffer edgeDest;      // edge -> destination vertex id
+    private IntBuffer edgeView;      // edge -> string id of the view down the path
+    private IntBuffer firstThing;    // vertex id -> first of its things in thingId
+    private IntBuffer thingId;       // string ids of the things found at the start, vertex by vertex
+    private AtomicReferenceArray<List<String>> things;   // vertex id -> things found there at the start, built when asked for
+    private int start;               // the start location
+
+    // descriptions built so far, by vertex id; any thread may build one, the
+    // atomic arrays make sure the others see it whole (a race builds it twice)
+    private AtomicReferenceArray<String> headers;        // message and routes
+    private AtomicReferenceArray<String> descriptions;   // header and the things of the template
+
+    private volatile Router router;  // shortest ways, built once
+    private final AtomicBoolean routerStarted = new AtomicBoolean();
+
+    /**
+     * Get the template for the given files, reading them only the first
+     * time they are asked for. A compiled image (see WorldCompiler) is
+     * given by its path alone, with empty messages and things files.
+     */
+    public static WorldTemplate load( String edgesfile, String messagesfile, String thingsfile )
+    {
+        String key = edgesfile + "\n" + messagesfile + "\n" + thingsfile;
+        WorldTemplate template;
+        if (messagesfile.isEmpty() && thingsfile.isEmpty())
+            template = templates.computeIfAbsent( key, k -> map( edgesfile ) );
+        else
+            template = templates.computeIfAbsent( key, k -> parse( edgesfile, messagesfile, thingsfile ) );
+        template.prepareRouter();
+        return template;
+    }
+
+    /**
+     * Read the files again even if they have been loaded before (the
+     * benchmarks use it to time the parsing itself).
+     */
+    static WorldTemplate parse( String edgesfile, String messagesfile, String thingsfile )
+    {
+        return new WorldTemplate( edgesfile, messagesfile, thingsfile );
+    }
+
+    /**
+     * Map a compiled image into memory. Nothing is parsed: the tables are
+     * used where they are in the file and a string is only decoded the
+     * first time it is needed, so opening even a very large world costs
+     * little more than the page faults of the parts actually visited.
+     */
+    static WorldTemplate map( String imagefile )
+    {
+        try (FileChannel channel = FileChannel.open( Paths.get( imagefile ), StandardOpenOption.READ )) {
+            ByteBuffer image = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            return new WorldTemplate( imagefile, image );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Cannot map world image " + imagefile, e );
+        }
+    }
+
+    private WorldTemplate( String edgesfile, String messagesfile, String thingsfile )
+    {
+        this.edgesfile = edgesfile;
+        this.messagesfile = messagesfile;
+        this.thingsfile = thingsfile;
+        List<List<String[]>> files = WorldLoader.readAll( edgesfile, messagesfile, thingsfile );
+        createEdges( files.get( 0 ) );
+        recordMessages( files.get( 1 ) );
+        recordThings( files.get( 2 ) );
+        pack();
+
+        System.out.println( "Files read..." );
+        System.out.println( size + " vertices\n" );
+    }
+
+    /**
+     * Turn the Vertex objects read from the files into the tables.
+     */
+    private void pack()
+    {
+        int n = vertexMap.size();
+        Map<String,Integer> ids = new HashMap<String,Integer>();
+        Map<String,Integer> stringIds = new HashMap<String,Integer>();
+        List<String> stringTable = new ArrayList<String>();
+
+        int[] names = new int[n];
+        int edges = 0;
+        int thingCount = 0;
+        for (Vertex v : vertexMap.values()) {
+            names[ids.size()] = intern( v._name, stringIds, stringTable );
+            ids.put( v._name, ids.size() );
+            edges += v._routes.size();
+            thingCount += v._things.size();
+        }
+
+        int[] messages = new int[n];
+        int[] first = new int[n + 1];
+        byte[] dirs = new byte[edges];
+        int[] dests = new int[edges];
+        int[] views = new int[edges];
+        int[] firstThings = new int[n + 1];
+        int[] thingIds = new int[thingCount];
+
+        int e = 0;
+        int t = 0;
+        for (Vertex v : vertexMap.values()) {
+            int id = ids.get( v._name );
+            messages[id] = intern( v._msg, stringIds, stringTable );
+            first[id] = e;
+            // routes are kept in the order of the directions
+            for (Direction d : Direction.values()) {
+                Edge edge = v._routes.get( d.word() );
+                if (edge == null)
+                    continue;
+                dirs[e] = (byte)d.ordinal();
+                dests[e] = ids.get( edge._dest._name );
+                views[e] = intern( edge._view, stringIds, stringTable );
+                e++;
+            }
+            firstThings[id] = t;
+            for (String thing : v._things) {
+                thingIds[t++] = intern( thing, stringIds, stringTable );
+            }
+        }
+        first[n] = e;
+        firstThings[n] = t;
+
+        int[] table = new int[tableSize( n )];
+        for (int id = 0; id < n; id++) {
+            int slot = slot( stringTable.get( names[id] ), table.length );
+            while (table[slot] != 0)
+                slot = (slot + 1) & (table.length - 1);
+            table[slot] = id + 1;
+        }
+
+        int startId = ids.containsKey( _startLocation ) ? ids.get( _startLocation ) : 0;
+        setTables( n, IntBuffer.wrap( names ), IntBuffer.wrap( table ), stringTable.toArray( new String[0] ),
+                   IntBuffer.wrap( messages ), IntBuffer.wrap( first ), ByteBuffer.wrap( dirs ),
+                   IntBuffer.wrap( dests ), IntBuffer.wrap( views ),
+                   IntBuffer.wrap( firstThings ), IntBuffer.wrap( thingIds ), startId );
+        vertexMap = null;
+    }
+
+    private void setTables( int n, IntBuffer names, IntBuffer table, String[] stringTable,
+                            IntBuffer messages, IntBuffer first, ByteBuffer dirs,
+                            IntBuffer dests, IntBuffer views,
+                            IntBuffer firstThings, IntBuffer thingIds, int startId )
+    {
+        size = n;
+        nameId = names;
+        index = table;
+        strings = stringTable;
+        message = messages;
+        firstEdge = first;
+        edgeDir = dirs;
+        edgeDest = dests;
+        edgeView = views;
+        firstThing = firstThings;
+        thingId = thingIds;
+        things = new AtomicReferenceArray<List<String>>( n );
+        start = startId;
+        headers = new AtomicReferenceArray<String>( n );
+        descriptions = new AtomicReferenceArray<String>( n );
+    }
+
+    private static int intern( String s, Map<String,Integer> ids, List<String> table )
+    {
+        Integer id = ids.get( s );
+        if (id == null) {
+            id = table.size();
+            ids.put( s, id );
+            table.add( s );
+        }
+        return id;
+    }
+
+    private static int tableSize( int n )
+    {
+        return Integer.highestOneBit( Math.max( 1, n ) ) << 2;
+    }
+
+    // first slot to look at for a name
+    private static int slot( String name, int tableLength )
+    {
+        int h = name.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (tableLength - 1);
+    }
+
+    /**
+     * The layout of a compiled image, all big-endian and every section
+     * starting on a multiple of 4 bytes:
+     *   magic, version, vertices, edges, strings, thing references,
+     *   index size, start vertex, length of the string bytes
+     *   name string ids [vertices]     message string ids [vertices]
+     *   first edge [vertices + 1]      edge directions [edges] (bytes)
+     *   edge destinations [edges]      edge views [edges]
+     *   first thing [vertices + 1]     thing string ids [thing references]
+     *   index [index size]             string offsets [strings + 1]
+     *   string bytes (UTF-8)
+     * The version changes whenever the layout does; older images have
+     * to be compiled again.
+     */
+    static final int MAGIC = 0x4D554457;    // "MUDW"
+    static final int VERSION = 1;
+
+    private WorldTemplate( String imagefile, ByteBuffer image )
+    {
+        this.edgesfile = imagefile;
+        this.messagesfile = "";
+        this.thingsfile = "";
+        vertexMap = null;
+
+        image.order( ByteOrder.BIG_ENDIAN );
+        if (image.getInt() != MAGIC)
+            throw new IllegalArgumentException( imagefile + " is not a world image" );
+        int version = image.getInt();
+        if (version != VERSION)
+            throw new IllegalArgumentException( imagefile + " has version " + version
+                                                + ", compile it again (version " + VERSION + ")" );
+        int n = image.getInt();
+        int edges = image.getInt();
+        int stringCount = image.getInt();
+        int thingCount = image.getInt();
+        int tableLength = image.getInt();
+        int startId = image.getInt();
+        int byteCount = image.getInt();
+
+        IntBuffer names = ints( image, n );
+        IntBuffer messages = ints( image, n );
+        IntBuffer first = ints( image, n + 1 );
+        ByteBuffer dirs = bytes( image, edges );
+        IntBuffer dests = ints( image, edges );
+        IntBuffer views = ints( image, edges );
+        IntBuffer firstThings = ints( image, n + 1 );
+        IntBuffer thingIds = ints( image, thingCount );
+        IntBuffer table = ints( image, tableLength );
+        stringStart = ints( image, stringCount + 1 );
+        stringBytes = bytes( image, byteCount );
+
+        setTables( n, names, table, new String[stringCount], messages, first, dirs,
+                   dests, views, firstThings, thingIds, startId );
+    }
+
+    // the next count ints of the image
+    private static IntBuffer ints( ByteBuffer image, int count )
+    {
+        ByteBuffer section = image.slice().order( ByteOrder.BIG_ENDIAN );
+        section.limit( count * 4 );
+        image.position( image.position() + count * 4 );
+        return section.asIntBuffer();
+    }
+
+    // the next count bytes of the image, the next section starts on a multiple of 4
+    private static ByteBuffer bytes( ByteBuffer image, int count )
+    {
+        ByteBuffer section = image.slice();
+        section.limit( count );
+        image.position( image.position() + ((count + 3) & ~3) );
+        return section;
+    }
+
+    /**
+     * Write the template as a compiled image (the format is described above).
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        byte[][] encoded = new byte[strings.length][];
+        int byteCount = 0;
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = string( i ).getBytes( StandardCharsets.UTF_8 );
+            byteCount += encoded[i].length;
+        }
+        int edges = firstEdge.get( size );
+
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( size );
+        out.writeInt( edges );
+        out.writeInt( strings.length );
+        out.writeInt( firstThing.get( size ) );
+        out.writeInt( index.capacity() );
+        out.writeInt( start );
+        out.writeInt( byteCount );
+
+        writeInts( out, nameId );
+        writeInts( out, message );
+        writeInts( out, firstEdge );
+        for (int e = 0; e < edges; e++)
+            out.writeByte( edgeDir.get( e ) );
+        pad( out, edges );
+        writeInts( out, edgeDest );
+        writeInts( out, edgeView );
+        writeInts( out, firstThing );
+        writeInts( out, thingId );
+        writeInts( out, index );
+        int offset = 0;
+        for (byte[] b : encoded) {
+            out.writeInt( offset );
+            offset += b.length;
+        }
+        out.writeInt( offset );
+        for (byte[] b : encoded)
+            out.write( b );
+        pad( out, byteCount );
+    }
+
+    private static void writeInts( DataOutputStream out, IntBuffer ints ) throws IOException
+    {
+        for (int i = 0; i < ints.capacity(); i++)
+            out.writeInt( ints.get( i ) );
+    }
+
+    private static void pad( DataOutputStream out, int count ) throws IOException
+    {
+        for (int i = count; (i & 3) != 0; i++)
+            out.writeByte( 0 );
+    }
+
+    // the string with the given id, decoded from the image the first time
+    private String string( int id )
+    {
+        String s = strings[id];
+        if (s == null) {
+            int from = stringStart.get( id );
+            byte[] b = new byte[stringStart.get( id + 1 ) - from];
+            stringBytes.get( from, b );
+            s = new String( b, StandardCharsets.UTF_8 );
+            strings[id] = s;    // Strings are immutable, a race only decodes it twice
+        }
+        return s;
+    }
+
+    /**
+     * If vertexName is not present, add it to vertexMap.  In either
+     * case, return the Vertex. Used only while loading.
+     */
+    private Vertex getOrCreateVertex( String vertexName )
+    {
+        Vertex v = vertexMap.get( vertexName );
+        if (v == null) {
+            v = new Vertex( vertexName );
+            vertexMap.put( vertexName, v );
+        }
+        return v;
+    }
+
+    /**
+     * Creates the edges of the graph on the basis of a file with the
+     * following fromat:
+     * source direction destination message
+     * The files are read and split into fields in parallel (see
+     * WorldLoader); the graph is built here from the lines in order.
+     */
+    private void createEdges( List<String[]> edges )
+    {
+        for (String[] line : edges) {
+            Vertex v = getOrCreateVertex( line[0] );
+            Vertex w = getOrCreateVertex( line[2] );
+            v._routes.put( line[1], new Edge( w, line[3] ) );
+        }
+    }
+
+    /**
+     * Records the messages assocated with vertices in the graph on
+     * the basis of a file with the following format:
+     * location message
+     * The first location is assumed to be the starting point for
+     * users joining the MUD.
+     */
+    private void recordMessages( List<String[]> messages )
+    {
+        boolean first = true; // For recording the start location.
+        for (String[] line : messages) {
+            getOrCreateVertex( line[0] )._msg = line[1];
+            if (first) {      // Record the start location.
+                _startLocation = line[0];
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Records the things assocated with vertices in the graph on
+     * the basis of a file with the following format:
+     * location thing1 thing2 ...
+     */
+    private void recordThings( List<String[]> things )
+    {
+        for (String[] line : things) {
+            Vertex v = getOrCreateVertex( line[0] );
+            for (int i = 1; i < line.length; i++) {
+                v._things.add( line[i] );
+            }
+        }
+    }
+
+    /**
+     * The id of the location with the given name, or -1 if there is none.
+     */
+    public int id( String name )
+    {
+        int mask = index.capacity() - 1;
+        for (int slot = slot( name, index.capacity() ); ; slot = (slot + 1) & mask) {
+            int v = index.get( slot );
+            if (v == 0)
+                return -1;
+            if (name( v - 1 ).equals( name ))
+                return v - 1;
+        }
+    }
+
+    public String name( int v )
+    {
+        return string( nameId.get( v ) );
+    }
+
+    public String message( int v )
+    {
+        return string( message.get( v ) );
+    }
+
+    /**
+     * Where the route from v in direction d leads, or -1 if there is none.
+     */
+    public int route( int v, Direction d )
+    {
+        for (int e = firstEdge.get( v ); e < firstEdge.get( v + 1 ); e++) {
+            if (edgeDir.get( e ) == d.ordinal())
+                return edgeDest.get( e );
+        }
+        return -1;
+    }
+
+    /**
+     * The number of routes out of v; routeDest( v, i ) for i below it are
+     * where they lead.
+     */
+    public int routeCount( int v )
+    {
+        return firstEdge.get( v + 1 ) - firstEdge.get( v );
+    }
+
+    public int routeDest( int v, int i )
+    {
+        return edgeDest.get( firstEdge.get( v ) + i );
+    }
+
+    public int routeDir( int v, int i )
+    {
+        return edgeDir.get( firstEdge.get( v ) + i );
+    }
+
+    /**
+     * The shortest ways between locations. Worlds small enough for a
+     * routing table start building it in the background when they are
+     * loaded, so the first /goto does not wait for it.
+     */
+    public Router router()
+    {
+        Router r = router;
+        if (r == null) {
+            synchronized (this) {
+                if (router == null)
+                    router = new Router( this );
+                r = router;
+            }
+        }
+        return r;
+    }
+
+    private void prepareRouter()
+    {
+        if (router == null && !routerStarted.getAndSet( true ))
+            CompletableFuture.runAsync( this::router );
+    }
+
+    /**
+     * The things found at v when an instance is created, read only.
+     */
+    public List<String> things( int v )
+    {
+        List<String> t = things.get( v );
+        if (t == null) {
+            int from = firstThing.get( v );
+            int to = firstThing.get( v + 1 );
+            if (from == to) {
+                t = Collections.emptyList();
+            } else {
+                List<String> initial = new ArrayList<String>( to - from );
+                for (int i = from; i < to; i++) {
+                    initial.add( string( thingId.get( i ) ) );
+                }
+                t = Collections.unmodifiableList( initial );
+            }
+            things.set( v, t );
+        }
+        return t;
+    }
+
+    /**
+     * The part of the description of v which never changes: its message
+     * and the routes out of it. Built the first time it is asked for.
+     */
+    public String header( int v )
+    {
+        String h = headers.get( v );
+        if (h == null) {
+            StringBuilder summary = new StringBuilder( "\n" );
+            summary.append( message( v ) ).append( "\n" );
+            for (int e = firstEdge.get( v ); e < firstEdge.get( v + 1 ); e++) {
+                summary.append( "To the " ).append( Direction.of( edgeDir.get( e ) ).word() )
+                       .append( " there is " ).append( string( edgeView.get( e ) ) ).append( "\n" );
+            }
+            h = summary.toString();
+            headers.set( v, h );
+        }
+        return h;
+    }
+
+    /**
+     * The part of a description listing the things at a location.
+     */
+    public static String contents( List<String> things )
+    {
+        StringBuilder summary = new StringBuilder();
+        if (!things.isEmpty()) {
+            summary.append( "You can see: " );
+            for (String thing : things) {
+                summary.append( thing ).append( " " );
+            }
+        }
+        summary.append( "\n\n" );
+        return summary.toString();
+    }
+
+    /**
+     * Describe location v with the things of the template at it. The
+     * template never changes, so the whole description is kept.
+     */
+    public String describe( int v )
+    {
+        String d = descriptions.get( v );
+        if (d == null) {
+            d = header( v ) + contents( things( v ) );
+            descriptions.set( v, d );
+        }
+        return d;
+    }
+
+    /**
+     * The start location for new MUD users.
+     */
+    public int start()
+    {
+        return start;
+    }
+
+    public String startLocation()
+    {
+        return size == 0 ? "" : name( start );
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public String edgesFile()
+    {
+        return edgesfile;
+    }
+
+    public String messagesFile()
+    {
+        return messagesfile;
+    }
+
+    public String thingsFile()
+    {
+        return thingsfile;
+    }
+}